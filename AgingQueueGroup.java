@@ -0,0 +1,189 @@
+
+/*
+ * AgingQueueGroup - priority queue group that ages waiting events
+ *
+ * Like a TibrvQueueGroup this group dispatches the queue with the
+ * highest priority that has events, but the priority of a queue is
+ * raised by one for every full bound its oldest event has waited:
+ *
+ *   effective priority = getPriority() + wait of oldest event / bound
+ *
+ * Below the bound this is plain priority order.  A queue one priority
+ * below another is served once its oldest event has waited one bound
+ * longer than the other's, so under load it waits about the bound
+ * more per level of priority, instead of until the higher queues are
+ * empty.  Ties go to the higher base priority.
+ *
+ * Rendezvous does not tell how long the first event of a queue has
+ * waited, so the group keeps the arrival time of every event itself:
+ * each time it looks at a queue, the events that arrived since the
+ * last look are the change in getCount() plus what it dispatched in
+ * between, and are stamped with the current time.  This requires that
+ * the queues are dispatched only through this group.  The stamps are
+ * late by at most the time between two looks, which is one callback.
+ *
+ * The group is a TibrvDispatchable and is meant for one dispatcher
+ * thread, see WeightedQueueGroup.
+ *
+ * Example:
+ *
+ *  AgingQueueGroup group = new AgingQueueGroup(20);
+ *  group.add(queue1);
+ *  group.add(queue2);
+ *  new TibrvDispatcher("dispatcher",group);
+ */
+
+import java.util.*;
+import com.tibco.tibrv.*;
+
+public class AgingQueueGroup implements TibrvDispatchable
+{
+    static class Slot
+    {
+        final TibrvQueue queue;
+        final int        priority;
+
+        long[] arrivals = new long[64];     // ring of arrival times
+        int    head     = 0;
+        int    size     = 0;
+        int    lastCount = 0;               // getCount() at the last look
+        long   dispatchedSince = 0;         // by us since the last look
+
+        long dispatched = 0;
+        long aged       = 0;                // dispatched with a raised priority
+        long oldest     = 0;                // longest wait seen, nanos
+
+        Slot(TibrvQueue queue) throws TibrvException
+        {
+            this.queue    = queue;
+            this.priority = queue.getPriority();
+        }
+
+        // stamps the events that arrived since the last look
+        void look(long now) throws TibrvException
+        {
+            int count = queue.getCount();
+            long arrived = count-lastCount+dispatchedSince;
+            for (long i=0; i<arrived; i++)
+                push(now);
+            // events dispatched by anyone else would leave stale stamps
+            while (size > count)
+                pop();
+            lastCount = count;
+            dispatchedSince = 0;
+        }
+
+        void push(long time)
+        {
+            if (size == arrivals.length)
+            {
+                long[] bigger = new long[arrivals.length*2];
+                for (int i=0; i<size; i++)
+                    bigger[i] = arrivals[(head+i) % arrivals.length];
+                arrivals = bigger;
+                head = 0;
+            }
+            arrivals[(head+size) % arrivals.length] = time;
+            size++;
+        }
+
+        long pop()
+        {
+            long time = arrivals[head];
+            head = (head+1) % arrivals.length;
+            size--;
+            return time;
+        }
+
+        long headAge(long now)
+        {
+            return size == 0 ? 0 : now-arrivals[head];
+        }
+    }
+
+    final long         boundNanos;
+    final List<Slot>   slots    = new ArrayList<Slot>();
+    final WaitStrategy strategy = new WaitStrategy.SpinThenPark();
+
+    public AgingQueueGroup(double boundMillis)
+    {
+        this.boundNanos = Math.max(1,(long)(boundMillis*1e6));
+    }
+
+    // Adds a queue with its current priority; set the priority first.
+    public synchronized void add(TibrvQueue queue) throws TibrvException
+    {
+        slots.add(new Slot(queue));
+    }
+
+    public void dispatch() throws TibrvException, InterruptedException
+    {
+        timedDispatch(-1);
+    }
+
+    // Waits at most 'timeout' seconds for an event, forever if negative.
+    public boolean timedDispatch(double timeout) throws TibrvException, InterruptedException
+    {
+        long deadline = timeout < 0 ? Long.MAX_VALUE : System.nanoTime()+(long)(timeout*1e9);
+        int emptyPolls = 0;
+        while (!poll())
+        {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (System.nanoTime() >= deadline)
+                return false;
+            if (emptyPolls < Integer.MAX_VALUE)
+                emptyPolls++;
+            strategy.idle(emptyPolls);
+        }
+        return true;
+    }
+
+    public synchronized boolean poll() throws TibrvException, InterruptedException
+    {
+        long now = System.nanoTime();
+        Slot best = null;
+        long bestPriority = 0;
+        for (Slot slot : slots)
+        {
+            slot.look(now);
+            if (slot.size == 0)
+                continue;
+            long priority = slot.priority+slot.headAge(now)/boundNanos;
+            if (best == null || priority > bestPriority ||
+                (priority == bestPriority && slot.priority > best.priority))
+            {
+                best = slot;
+                bestPriority = priority;
+            }
+        }
+        if (best == null)
+            return false;
+
+        long age = best.headAge(now);
+        if (!best.queue.poll())
+            return false;
+        best.pop();
+        best.dispatchedSince++;
+        best.dispatched++;
+        if (bestPriority > best.priority)
+            best.aged++;
+        if (age > best.oldest)
+            best.oldest = age;
+        return true;
+    }
+
+    // Events per queue, how many were dispatched with a raised
+    // priority, and the longest wait seen.
+    public synchronized String report()
+    {
+        StringBuilder out = new StringBuilder();
+        for (int i=0; i<slots.size(); i++)
+        {
+            Slot slot = slots.get(i);
+            out.append(String.format("  queue %d (priority %d): %d events, %d raised (bound %.1f ms), longest wait %.1f ms%n",
+                    i+1,slot.priority,slot.dispatched,slot.aged,boundNanos/1e6,slot.oldest/1e6));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.List;
+import com.tibco.tibrv.TibrvException;
+import com.tibco.tibrv.TibrvListener;
+import com.tibco.tibrv.TibrvMsg;
+import com.tibco.tibrv.TibrvMsgCallback;
+import com.tibco.tibrv.TibrvQueue;
+
+/**
+ * Dispatches a queue and hands its messages to a {@link MsgBatchCallback}
+ * many at a time.
+ *
+ * Use the dispatcher as the TibrvMsgCallback of the listeners on the
+ * queue, then call {@link #run()} on the thread that should dispatch it.
+ * Each cycle blocks for the first event, then keeps polling until
+ * maxBatch messages are collected or maxWaitMicros have passed since the
+ * first one, whichever comes first, and calls onMsgs once. With a wait of
+ * 0 a batch is whatever was already queued.
+ *
+ * Inbound messages belong to the library and are only valid during the
+ * dispatch that delivered them, so each message is copied, as
+ * {@link Sampler} does, and the copies are disposed after onMsgs.
+ */
+public class BatchDispatcher implements TibrvMsgCallback, Runnable
+{
+
+	final TibrvQueue queue;
+	final MsgBatchCallback callback;
+	final int maxBatch;
+	final long maxWaitNanos;
+
+	final List<TibrvMsg> batch;
+
+	volatile boolean running = true;
+
+	long batches = 0;
+	long messages = 0;
+
+	public BatchDispatcher(TibrvQueue queue, MsgBatchCallback callback, int maxBatch, long maxWaitMicros)
+	{
+		this.queue = queue;
+		this.callback = callback;
+		this.maxBatch = maxBatch;
+		this.maxWaitNanos = maxWaitMicros * 1000;
+		this.batch = new ArrayList<TibrvMsg>(maxBatch);
+	}
+
+	public void onMsg(TibrvListener listener, TibrvMsg msg)
+	{
+		try {
+			batch.add(new TibrvMsg(msg));
+		} catch (TibrvException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void run()
+	{
+		try {
+			while (running) {
+				// wake up now and then to notice when we should stop
+				if (!queue.timedDispatch(0.1)) {
+					continue;
+				}
+				long deadline = System.nanoTime() + maxWaitNanos;
+				while (batch.size() < maxBatch) {
+					if (!queue.poll()) {
+						if (System.nanoTime() >= deadline) {
+							break;
+						}
+						Thread.onSpinWait();
+					}
+				}
+				if (!batch.isEmpty()) {
+					batches++;
+					messages += batch.size();
+					try {
+						callback.onMsgs(batch);
+					} finally {
+						for (TibrvMsg msg : batch) {
+							msg.dispose();
+						}
+						batch.clear();
+					}
+				}
+			}
+		} catch (TibrvException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	public void stop()
+	{
+		running = false;
+	}
+
+	/** Average messages per onMsgs call, read after the dispatch thread stopped. */
+	public double averageBatch()
+	{
+		return batches == 0 ? 0 : (double) messages / batches;
+	}
+
+}
@@ -0,0 +1,217 @@
+
+/*
+ * CallbackProfiler - callback time per listener and slow callback reports
+ *
+ * wrap() returns a callback that times every call of the wrapped one
+ * into a LatencyHistogram per listener subject, or per message subject
+ * if bySubject is set.  At most maxKeys keys get a histogram of their
+ * own, further keys are recorded in a shared "(other)" histogram.
+ *
+ * A callback taking longer than the threshold is printed with its
+ * subject, thread and time.  While it is still running, a sampler
+ * thread that looks at the running callbacks four times per threshold
+ * takes a stack trace of the dispatcher thread, which is printed with
+ * it and shows where the callback was stuck.  Threads that have ended,
+ * such as virtual threads that ran a single callback, are dropped by
+ * the sampler.
+ *
+ * The wrapper costs two System.nanoTime() calls, a map lookup and an
+ * uncontended lock per message and does not allocate, so it can stay
+ * on in production.  report() may be called from any thread.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class CallbackProfiler
+{
+    static final int STACK_DEPTH = 12;      // frames printed per slow callback
+
+    // what a dispatcher thread is running, one per thread, reused
+    static class InFlight
+    {
+        final Thread thread = Thread.currentThread();
+
+        volatile long                start;         // 0 when idle
+        volatile String              key;
+        volatile StackTraceElement[] stack;
+        volatile long                sampledStart;  // start of the call 'stack' belongs to
+    }
+
+    final long    thresholdNanos;
+    final boolean bySubject;
+    final int     maxKeys;
+
+    final ConcurrentHashMap<String,LatencyHistogram> histograms =
+            new ConcurrentHashMap<String,LatencyHistogram>();
+    final LatencyHistogram other = new LatencyHistogram();
+
+    final Set<InFlight> running = ConcurrentHashMap.newKeySet();
+    final ThreadLocal<InFlight> current = new ThreadLocal<InFlight>() {
+        protected InFlight initialValue()
+        {
+            InFlight state = new InFlight();
+            running.add(state);
+            return state;
+        }
+    };
+
+    final AtomicLong slowCallbacks = new AtomicLong();
+
+    public CallbackProfiler(double thresholdMillis, boolean bySubject, int maxKeys)
+    {
+        this.thresholdNanos = (long)(thresholdMillis*1e6);
+        this.bySubject      = bySubject;
+        this.maxKeys        = maxKeys;
+
+        Thread sampler = new Thread("CallbackProfiler-sampler") {
+            public void run()
+            {
+                sample();
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public TibrvMsgCallback wrap(final TibrvMsgCallback callback)
+    {
+        return new TibrvMsgCallback() {
+            public void onMsg(TibrvListener listener, TibrvMsg msg)
+            {
+                String key = bySubject || listener == null ? msg.getSendSubject() :
+                                                             listener.getSubject();
+                InFlight state = current.get();
+                long start = System.nanoTime();
+                state.key   = key;
+                state.start = start;
+                try
+                {
+                    callback.onMsg(listener,msg);
+                }
+                finally
+                {
+                    long nanos = System.nanoTime()-start;
+                    state.start = 0;
+                    record(key,nanos);
+                    if (nanos >= thresholdNanos)
+                        slow(state,key,start,nanos);
+                }
+            }
+        };
+    }
+
+    void record(String key, long nanos)
+    {
+        LatencyHistogram histogram = key == null ? other : histograms.get(key);
+        if (histogram == null)
+            histogram = create(key);
+        synchronized (histogram)
+        {
+            histogram.record(nanos);
+        }
+    }
+
+    LatencyHistogram create(String key)
+    {
+        if (histograms.size() >= maxKeys)
+            return other;
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram existing = histograms.putIfAbsent(key,histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    void slow(InFlight state, String key, long start, long nanos)
+    {
+        slowCallbacks.incrementAndGet();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("slow callback on %s: %.3f ms in %s%n",
+                key,nanos/1e6,state.thread.getName()));
+        StackTraceElement[] stack = state.stack;
+        if (state.sampledStart == start && stack != null)
+        {
+            out.append(String.format("  sampled after %.3f ms:%n",thresholdNanos/1e6));
+            for (int i=0; i<stack.length && i<STACK_DEPTH; i++)
+                out.append("    at "+stack[i]+"\n");
+        }
+        System.err.print(out);
+    }
+
+    // takes a stack of every callback running longer than the
+    // threshold, once per call
+    void sample()
+    {
+        long interval = Math.max(1,thresholdNanos/4000000);
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            long now = System.nanoTime();
+            for (InFlight state : running)
+            {
+                if (!state.thread.isAlive())
+                {
+                    running.remove(state);
+                    continue;
+                }
+                long start = state.start;
+                if (start != 0 && start != state.sampledStart && now-start >= thresholdNanos)
+                {
+                    state.stack = state.thread.getStackTrace();
+                    state.sampledStart = start;
+                }
+            }
+        }
+    }
+
+    // Returns callback times in microseconds over all keys and for
+    // the 'top' keys with the highest 99th percentile.
+    public String report(int top)
+    {
+        final Map<String,Long> p99 = new HashMap<String,Long>();
+        Map<String,String> lines = new HashMap<String,String>();
+        LatencyHistogram all = new LatencyHistogram();
+        for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet())
+        {
+            LatencyHistogram histogram = entry.getValue();
+            synchronized (histogram)
+            {
+                all.add(histogram);
+                p99.put(entry.getKey(),histogram.getPercentile(99));
+                lines.put(entry.getKey(),histogram.summary(1000,"us"));
+            }
+        }
+        String otherLine = null;
+        synchronized (other)
+        {
+            all.add(other);
+            if (other.getCount() > 0)
+                otherLine = other.summary(1000,"us");
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("--- callbacks: %s%n",all.summary(1000,"us")));
+        out.append(String.format("  %d slower than %.3f ms%n",slowCallbacks.get(),thresholdNanos/1e6));
+
+        List<String> keys = new ArrayList<String>(p99.keySet());
+        Collections.sort(keys,new Comparator<String>() {
+            public int compare(String a, String b)
+            {
+                return Long.compare(p99.get(b),p99.get(a));
+            }
+        });
+        for (int i=0; i<keys.size() && i<top; i++)
+            out.append(String.format("  %s: %s%n",keys.get(i),lines.get(keys.get(i))));
+        if (otherLine != null)
+            out.append(String.format("  (other): %s%n",otherLine));
+        return out.toString();
+    }
+}
@@ -0,0 +1,212 @@
+
+/*
+ * ConflatingDispatcher - processes only the latest message per subject
+ *
+ * Used as the callback of listeners whose queue is dispatched by a
+ * single intake dispatcher.  The intake keeps only the latest message
+ * of every send subject and puts the subject on a ready list, unless
+ * it is there already.  Worker threads take subjects off the ready list
+ * and call the real callback with whatever message is the latest at
+ * that moment.  A message that is replaced before a worker gets to it
+ * is dropped, which suits feeds where every message carries the full
+ * state of its subject.
+ *
+ * A subject is handled by one worker at a time, so messages of one
+ * subject are still processed in order, older ones just skipped.
+ *
+ * Inbound messages are only valid during the dispatch that delivered
+ * them, so the intake keeps a copy.  A copy is disposed when a newer
+ * message replaces it or after the callback processed it.
+ *
+ * report() shows messages received and processed, the conflation ratio
+ * (received per processed), the current backlog of subjects and how
+ * long the last and the longest backlog took to drain, and may be
+ * called from any thread.  There is an entry per subject ever seen.
+ *
+ * Example:
+ *
+ *  ConflatingDispatcher conflater = new ConflatingDispatcher("Conflate",4,callback);
+ *  new TibrvListener(queue,conflater,transport,"PRICE.>",null);
+ *  new TibrvDispatcher("Intake",queue);
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class ConflatingDispatcher implements TibrvMsgCallback
+{
+    static class Event
+    {
+        final TibrvListener listener;
+        final TibrvMsg      msg;
+
+        Event(TibrvListener listener, TibrvMsg msg)
+        {
+            this.listener = listener;
+            this.msg      = msg;
+        }
+    }
+
+    static class Slot
+    {
+        final AtomicReference<Event> latest    = new AtomicReference<Event>();
+        final AtomicBoolean          scheduled = new AtomicBoolean();
+    }
+
+    // the ready list gets this once per worker on shutdown
+    static final Slot STOP = new Slot();
+
+    final TibrvMsgCallback              callback;
+    final ConcurrentHashMap<String,Slot> slots = new ConcurrentHashMap<String,Slot>();
+    final BlockingQueue<Slot>            ready = new LinkedBlockingQueue<Slot>();
+    final Thread[]                       workers;
+
+    final AtomicLong    received  = new AtomicLong();
+    final AtomicLong    conflated = new AtomicLong();
+    final AtomicLong    processed = new AtomicLong();
+    final AtomicInteger backlog   = new AtomicInteger();   // subjects with a message waiting
+
+    volatile long backlogSince = 0;         // when the backlog last became non-empty
+    volatile long lastDrainNanos = 0;
+    volatile long longestDrainNanos = 0;
+
+    public ConflatingDispatcher(String name, int workerCount, TibrvMsgCallback callback)
+    {
+        this.callback = callback;
+        workers = new Thread[Math.max(1,workerCount)];
+        for (int i=0; i<workers.length; i++)
+        {
+            workers[i] = new Thread(name+"-"+(i+1)) {
+                public void run()
+                {
+                    work();
+                }
+            };
+            workers[i].start();
+        }
+    }
+
+    // Intake: runs on the dispatcher thread of the listener's queue
+    public void onMsg(TibrvListener listener, TibrvMsg msg)
+    {
+        received.incrementAndGet();
+        String subject = msg.getSendSubject();
+        Slot slot = slots.get(subject);
+        if (slot == null)
+        {
+            Slot created = new Slot();
+            slot = slots.putIfAbsent(subject,created);
+            if (slot == null)
+                slot = created;
+        }
+
+        TibrvMsg copy;
+        try
+        {
+            copy = new TibrvMsg(msg);
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+        Event replaced = slot.latest.getAndSet(new Event(listener,copy));
+        if (replaced != null)
+        {
+            replaced.msg.dispose();
+            conflated.incrementAndGet();
+        }
+        else if (backlog.getAndIncrement() == 0)
+            backlogSince = System.nanoTime();
+
+        if (slot.scheduled.compareAndSet(false,true))
+            ready.add(slot);
+    }
+
+    void work()
+    {
+        try
+        {
+            while (true)
+            {
+                Slot slot = ready.take();
+                if (slot == STOP)
+                    return;
+                Event event = slot.latest.getAndSet(null);
+                if (event != null)
+                {
+                    if (backlog.decrementAndGet() == 0)
+                        drained();
+                    try
+                    {
+                        callback.onMsg(event.listener,event.msg);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        event.msg.dispose();
+                    }
+                    processed.incrementAndGet();
+                }
+                // a newer message may have come in while we were busy
+                slot.scheduled.set(false);
+                if (slot.latest.get() != null && slot.scheduled.compareAndSet(false,true))
+                    ready.add(slot);
+            }
+        }
+        catch (InterruptedException e)
+        {
+        }
+    }
+
+    void drained()
+    {
+        long nanos = System.nanoTime()-backlogSince;
+        lastDrainNanos = nanos;
+        if (nanos > longestDrainNanos)
+            longestDrainNanos = nanos;
+    }
+
+    // Lets the workers finish the messages waiting, then stops them.
+    // The intake must have stopped before.
+    public void shutdown()
+    {
+        while (backlog.get() > 0)
+        {
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+        for (int i=0; i<workers.length; i++)
+            ready.add(STOP);
+        for (Thread worker : workers)
+        {
+            try
+            {
+                worker.join();
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    public String report()
+    {
+        long in  = received.get();
+        long out = processed.get();
+        return String.format("Conflation: %d received, %d processed, %d dropped, ratio %.2f, "+
+                             "%d subjects, backlog %d, last drain %.3f s, longest %.3f s",
+                in,out,conflated.get(),out == 0 ? 0 : (double)in/out,slots.size(),
+                backlog.get(),lastDrainNanos/1e9,longestDrainNanos/1e9);
+    }
+}
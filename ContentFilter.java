@@ -0,0 +1,373 @@
+
+/*
+ * ContentFilter - compiled predicate over message fields
+ *
+ * A filter expression is parsed once into a tree of clause objects
+ * which read typed field values directly from the message, so no
+ * string formatting of the message is needed to decide whether it
+ * is wanted.
+ *
+ * Grammar:
+ *
+ *   expr       := and ( '||' and )*
+ *   and        := unary ( '&&' unary )*
+ *   unary      := '!' unary | '(' expr ')' | comparison
+ *   comparison := FIELD op literal
+ *   op         := '==' | '!=' | '<' | '<=' | '>' | '>='
+ *   literal    := integer | decimal | "string" | true | false
+ *
+ * Numeric literals compare against the value of get() in the field's
+ * own type: an integer literal against an integral field exactly as
+ * long, and as double against a floating point field, so PRICE > 100
+ * is true for PRICE=100.5.  Decimals always compare as double.
+ * Strings and booleans compare against get().  A clause on a missing
+ * or non-numeric field is false.  '&&' and '||' stop at the first clause that
+ * decides the result.
+ *
+ * Example:
+ *
+ *   PRICE > 100 && VENUE == "X"
+ *
+ * accept() also keeps evaluation statistics, which may be read
+ * while other threads are evaluating.
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class ContentFilter
+{
+    abstract static class Clause
+    {
+        abstract boolean test(TibrvMsg msg);
+    }
+
+    final String expression;
+    final Clause clause;
+
+    final LongAdder evaluated = new LongAdder();
+    final LongAdder matched   = new LongAdder();
+    final LongAdder nanos     = new LongAdder();
+
+    public ContentFilter(String expression)
+    {
+        this.expression = expression;
+        this.clause = new Parser(expression).parse();
+    }
+
+    // returns true if the message passes the filter
+    public boolean accept(TibrvMsg msg)
+    {
+        long start = System.nanoTime();
+        boolean result = clause.test(msg);
+        nanos.add(System.nanoTime()-start);
+        evaluated.increment();
+        if (result)
+            matched.increment();
+        return result;
+    }
+
+    public String report()
+    {
+        long n = evaluated.sum();
+        long m = matched.sum();
+        return "filter ["+expression+"]: evaluated "+n+", matched "+m+
+               (n == 0 ? "" : String.format(" (%.2f%%), %.1f ns/msg",
+                                             100.0*m/n,(double)nanos.sum()/n));
+    }
+
+    public String toString()
+    {
+        return expression;
+    }
+
+    //---------------------------------------------------------------
+    // clauses
+    //---------------------------------------------------------------
+
+    static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+
+    static boolean compare(int op, int cmp)
+    {
+        switch (op)
+        {
+            case EQ: return cmp == 0;
+            case NE: return cmp != 0;
+            case LT: return cmp <  0;
+            case LE: return cmp <= 0;
+            case GT: return cmp >  0;
+            default: return cmp >= 0;
+        }
+    }
+
+    static class And extends Clause
+    {
+        final Clause[] clauses;
+        And(List<Clause> clauses) { this.clauses = clauses.toArray(new Clause[0]); }
+
+        boolean test(TibrvMsg msg)
+        {
+            for (int i=0; i<clauses.length; i++)
+            {
+                if (!clauses[i].test(msg))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    static class Or extends Clause
+    {
+        final Clause[] clauses;
+        Or(List<Clause> clauses) { this.clauses = clauses.toArray(new Clause[0]); }
+
+        boolean test(TibrvMsg msg)
+        {
+            for (int i=0; i<clauses.length; i++)
+            {
+                if (clauses[i].test(msg))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    static class Not extends Clause
+    {
+        final Clause clause;
+        Not(Clause clause) { this.clause = clause; }
+
+        boolean test(TibrvMsg msg)
+        {
+            return !clause.test(msg);
+        }
+    }
+
+    // integer literal, compared in the type of the field
+    static class IntegerCompare extends Clause
+    {
+        final String field;
+        final int op;
+        final long value;
+        IntegerCompare(String field, int op, long value) { this.field = field; this.op = op; this.value = value; }
+
+        boolean test(TibrvMsg msg)
+        {
+            try
+            {
+                Object data = msg.get(field);
+                if (data instanceof Integer || data instanceof Long ||
+                    data instanceof Short   || data instanceof Byte)
+                    return compare(op,Long.compare(((Number)data).longValue(),value));
+                if (!(data instanceof Number))
+                    return false;
+                return compare(op,Double.compare(((Number)data).doubleValue(),value));
+            }
+            catch (TibrvException e)
+            {
+                return false;
+            }
+        }
+    }
+
+    static class DoubleCompare extends Clause
+    {
+        final String field;
+        final int op;
+        final double value;
+        DoubleCompare(String field, int op, double value) { this.field = field; this.op = op; this.value = value; }
+
+        boolean test(TibrvMsg msg)
+        {
+            try
+            {
+                Object data = msg.get(field);
+                if (!(data instanceof Number))
+                    return false;
+                return compare(op,Double.compare(((Number)data).doubleValue(),value));
+            }
+            catch (TibrvException e)
+            {
+                return false;
+            }
+        }
+    }
+
+    // string and boolean literals, equality only
+    static class ValueCompare extends Clause
+    {
+        final String field;
+        final boolean equal;
+        final Object value;
+        ValueCompare(String field, boolean equal, Object value) { this.field = field; this.equal = equal; this.value = value; }
+
+        boolean test(TibrvMsg msg)
+        {
+            try
+            {
+                Object data = msg.get(field);
+                if (data == null)
+                    return false;
+                return value.equals(data) == equal;
+            }
+            catch (TibrvException e)
+            {
+                return false;
+            }
+        }
+    }
+
+    //---------------------------------------------------------------
+    // parser
+    //---------------------------------------------------------------
+
+    static class Parser
+    {
+        final String text;
+        int pos = 0;
+
+        Parser(String text)
+        {
+            this.text = text;
+        }
+
+        Clause parse()
+        {
+            Clause clause = parseOr();
+            skipSpace();
+            if (pos < text.length())
+                throw error("unexpected '"+text.charAt(pos)+"'");
+            return clause;
+        }
+
+        Clause parseOr()
+        {
+            List<Clause> clauses = new ArrayList<Clause>();
+            clauses.add(parseAnd());
+            while (accept("||"))
+                clauses.add(parseAnd());
+            return clauses.size() == 1 ? clauses.get(0) : new Or(clauses);
+        }
+
+        Clause parseAnd()
+        {
+            List<Clause> clauses = new ArrayList<Clause>();
+            clauses.add(parseUnary());
+            while (accept("&&"))
+                clauses.add(parseUnary());
+            return clauses.size() == 1 ? clauses.get(0) : new And(clauses);
+        }
+
+        Clause parseUnary()
+        {
+            if (accept("!"))
+                return new Not(parseUnary());
+            if (accept("("))
+            {
+                Clause clause = parseOr();
+                if (!accept(")"))
+                    throw error("missing ')'");
+                return clause;
+            }
+            return parseComparison();
+        }
+
+        Clause parseComparison()
+        {
+            String field = parseName();
+
+            int op;
+            if      (accept("==")) op = EQ;
+            else if (accept("!=")) op = NE;
+            else if (accept("<=")) op = LE;
+            else if (accept(">=")) op = GE;
+            else if (accept("<"))  op = LT;
+            else if (accept(">"))  op = GT;
+            else throw error("expected comparison operator after "+field);
+
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == '"')
+                return valueClause(field,op,parseString());
+
+            String literal = parseName();
+            if (literal.equals("true") || literal.equals("false"))
+                return valueClause(field,op,Boolean.valueOf(literal));
+            try
+            {
+                return new IntegerCompare(field,op,Long.parseLong(literal));
+            }
+            catch (NumberFormatException e)
+            {
+            }
+            try
+            {
+                return new DoubleCompare(field,op,Double.parseDouble(literal));
+            }
+            catch (NumberFormatException e)
+            {
+                throw error("invalid literal "+literal);
+            }
+        }
+
+        Clause valueClause(String field, int op, Object value)
+        {
+            if (op != EQ && op != NE)
+                throw error("only == and != apply to "+value);
+            return new ValueCompare(field,op == EQ,value);
+        }
+
+        String parseName()
+        {
+            skipSpace();
+            int start = pos;
+            while (pos < text.length())
+            {
+                char c = text.charAt(pos);
+                if (!Character.isLetterOrDigit(c) && c != '_' && c != '.' && c != '-' && c != '+')
+                    break;
+                pos++;
+            }
+            if (start == pos)
+                throw error("expected field name or literal");
+            return text.substring(start,pos);
+        }
+
+        String parseString()
+        {
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (pos < text.length())
+            {
+                char c = text.charAt(pos++);
+                if (c == '"')
+                    return value.toString();
+                if (c == '\\' && pos < text.length())
+                    c = text.charAt(pos++);
+                value.append(c);
+            }
+            throw error("unterminated string");
+        }
+
+        boolean accept(String token)
+        {
+            skipSpace();
+            if (!text.startsWith(token,pos))
+                return false;
+            pos += token.length();
+            return true;
+        }
+
+        void skipSpace()
+        {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+
+        IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message+" at position "+pos+
+                                                " in filter: "+text);
+        }
+    }
+}
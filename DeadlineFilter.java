@@ -0,0 +1,112 @@
+
+/*
+ * DeadlineFilter - drops messages whose deadline passed before dispatch
+ *
+ * wrap() returns a callback that checks the deadline of every message
+ * when it is dispatched and only calls the wrapped callback if the
+ * deadline has not passed yet.  Expired messages are counted and
+ * dropped, so a queue that has backed up spends its time on messages
+ * that are still useful and catches up sooner.
+ *
+ * The deadline is given as
+ *
+ *   field:NAME[:unit]          field NAME holds the deadline as epoch
+ *                              time
+ *   ttl:MILLIS:NAME[:unit]     field NAME holds the time the message
+ *                              was published, as epoch time, and the
+ *                              message expires MILLIS later
+ *
+ * with unit ms (the default), us or ns.  Rendezvous does not record
+ * when a message was received, so a TTL counts from the publish time
+ * in the message; publisher and subscriber clocks must agree.
+ * Messages without the field are always dispatched.
+ *
+ * The wrapped callback may be called from several dispatcher threads.
+ */
+
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DeadlineFilter
+{
+    final String field;
+    final long   nanosPerUnit;
+    final long   ttlNanos;
+
+    final LongAdder  passed       = new LongAdder();
+    final LongAdder  shed         = new LongAdder();
+    final LongAdder  missing      = new LongAdder();
+    final AtomicLong maxLateNanos = new AtomicLong();   // most nanos past a deadline
+
+    public DeadlineFilter(String spec)
+    {
+        String[] parts = spec.split(":");
+        int next;
+        if (parts[0].equals("field") && parts.length >= 2 && parts.length <= 3)
+        {
+            ttlNanos = 0;
+            next = 1;
+        }
+        else if (parts[0].equals("ttl") && parts.length >= 3 && parts.length <= 4)
+        {
+            ttlNanos = Long.parseLong(parts[1])*1000000;
+            next = 2;
+        }
+        else
+            throw new IllegalArgumentException("Unknown deadline: "+spec);
+
+        field = parts[next];
+        String unit = next+1 < parts.length ? parts[next+1] : "ms";
+        if (unit.equals("ns"))
+            nanosPerUnit = 1;
+        else if (unit.equals("us"))
+            nanosPerUnit = 1000;
+        else if (unit.equals("ms"))
+            nanosPerUnit = 1000000;
+        else
+            throw new IllegalArgumentException("Unknown time unit: "+unit);
+    }
+
+    public TibrvMsgCallback wrap(final TibrvMsgCallback callback)
+    {
+        return new TibrvMsgCallback() {
+            public void onMsg(TibrvListener listener, TibrvMsg msg)
+            {
+                if (expired(msg))
+                    return;
+                passed.increment();
+                callback.onMsg(listener,msg);
+            }
+        };
+    }
+
+    // true if the deadline of the message has passed, counting it as shed
+    public boolean expired(TibrvMsg msg)
+    {
+        long time;
+        try
+        {
+            time = msg.getAsLong(field,0);
+        }
+        catch (TibrvException e)
+        {
+            missing.increment();
+            return false;
+        }
+        long late = System.currentTimeMillis()*1000000-(time*nanosPerUnit+ttlNanos);
+        if (late <= 0)
+            return false;
+        shed.increment();
+        maxLateNanos.accumulateAndGet(late,Math::max);
+        return true;
+    }
+
+    public String report()
+    {
+        long n = passed.sum();
+        long s = shed.sum();
+        return String.format("Deadline %s%s: %d dispatched, %d shed (%.1f%%), %d without %s, most %.3f s late",
+                field,ttlNanos > 0 ? String.format(" + %d ms",ttlNanos/1000000) : "",
+                n,s,n+s == 0 ? 0 : 100.0*s/(n+s),missing.sum(),field,maxLateNanos.get()/1e9);
+    }
+}
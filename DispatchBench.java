@@ -0,0 +1,257 @@
+
+/*
+ * DispatchBench - throughput and latency of dispatch topologies
+ *
+ * It uses the Java implementation and the process transport, like the
+ * dispatcher sample, and does not need a daemon.
+ *
+ * For every combination of
+ *
+ *  layout       queue   one queue dispatched by D dispatchers
+ *               queues  D queues with one dispatcher each, messages
+ *                       spread round robin over their subjects
+ *               group   D queues in one TibrvQueueGroup dispatched by
+ *                       D dispatchers
+ *  dispatchers  1, 2, 4, ... up to -dispatchers
+ *  cost         busy work per callback in microseconds, -costs
+ *
+ * the main thread publishes -messages messages, stamped with
+ * System.nanoTime(), while the dispatchers run.  The program prints
+ * messages per second from the first send to the last callback, and
+ * percentiles of the time from send to the start of the callback,
+ * which includes the time spent waiting in the queue.
+ *
+ * Without -rate messages are sent as fast as possible, so latency
+ * mostly measures the backlog; with -rate the publisher keeps to the
+ * given messages per second.
+ *
+ * A first pass over the "queue" layout without cost warms up the JIT
+ * and is not printed.
+ *
+ * Optional parameters:
+ *
+ * -dispatchers <n>  - most dispatchers, default 4
+ * -messages <n>     - messages per case, default 20000
+ * -costs <list>     - callback costs in us, default 0,1,10,100
+ * -rate <n>         - messages per second, default as fast as possible
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DispatchBench
+{
+    static final String[] LAYOUTS = { "queue", "queues", "group" };
+
+    int    maxDispatchers = 4;
+    int    messages       = 20000;
+    long[] costs          = { 0, 1, 10, 100 };
+    long   rate           = 0;
+
+    TibrvTransport transport;
+    long           start;           // first send of the current case
+
+    // One measured run: the callback of its listeners
+    class Case implements TibrvMsgCallback
+    {
+        final long                   costNanos;
+        final AtomicLong             processed = new AtomicLong();
+        final CountDownLatch         done      = new CountDownLatch(1);
+        final List<LatencyHistogram> latencies =
+                Collections.synchronizedList(new ArrayList<LatencyHistogram>());
+        final ThreadLocal<LatencyHistogram> latency = new ThreadLocal<LatencyHistogram>() {
+            protected LatencyHistogram initialValue()
+            {
+                LatencyHistogram histogram = new LatencyHistogram();
+                latencies.add(histogram);
+                return histogram;
+            }
+        };
+        volatile long lastNanos;
+
+        Case(long costMicros)
+        {
+            costNanos = costMicros*1000;
+        }
+
+        public void onMsg(TibrvListener listener, TibrvMsg msg)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                latency.get().record(start-msg.getAsLong("t",0));
+            }
+            catch (TibrvException e)
+            {
+                e.printStackTrace();
+            }
+            long end = start+costNanos;
+            while (System.nanoTime() < end)
+                Thread.onSpinWait();
+            if (processed.incrementAndGet() == messages)
+            {
+                lastNanos = System.nanoTime();
+                done.countDown();
+            }
+        }
+
+        // merge after the dispatchers stopped
+        LatencyHistogram latency()
+        {
+            LatencyHistogram all = new LatencyHistogram();
+            for (LatencyHistogram histogram : latencies)
+                all.add(histogram);
+            return all;
+        }
+    }
+
+    public DispatchBench(String args[])
+    {
+        int i=0;
+        while (i < args.length)
+        {
+            if (args[i].equals("-dispatchers") && i+1 < args.length)
+            {
+                maxDispatchers = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-messages") && i+1 < args.length)
+            {
+                messages = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-costs") && i+1 < args.length)
+            {
+                String[] list = args[i+1].split(",");
+                costs = new long[list.length];
+                for (int j=0; j<list.length; j++)
+                    costs[j] = Long.parseLong(list[j].trim());
+                i += 2;
+            }
+            else
+            if (args[i].equals("-rate") && i+1 < args.length)
+            {
+                rate = Long.parseLong(args[i+1]);
+                i += 2;
+            }
+            else
+                usage();
+        }
+    }
+
+    void usage()
+    {
+        System.err.println("Usage: java DispatchBench [-dispatchers n] [-messages n]");
+        System.err.println("                          [-costs us,us,...] [-rate msgs/sec]");
+        System.exit(-1);
+    }
+
+    public void execute()
+    {
+        try
+        {
+            Tibrv.open(Tibrv.IMPL_JAVA);
+            transport = Tibrv.processTransport();
+
+            // warm-up
+            for (int d=1; d<=maxDispatchers; d*=2)
+                run("queue",d,0);
+
+            System.out.println(messages+" messages per case"+
+                               (rate > 0 ? ", "+rate+" msgs/sec" : ", unpaced"));
+            System.out.println("layout  disp  cost us        msg/s     p50 us     p99 us   p99.9 us     max us");
+            for (String layout : LAYOUTS)
+                for (long cost : costs)
+                    for (int d=1; d<=maxDispatchers; d*=2)
+                    {
+                        Case result = run(layout,d,cost);
+                        LatencyHistogram latency = result.latency();
+                        System.out.println(String.format("%-6s %5d %8d %12.0f %10.1f %10.1f %10.1f %10.1f",
+                                layout,d,cost,result.processed.get()*1e9/Math.max(1,result.lastNanos-start),
+                                latency.getPercentile(50)/1e3,latency.getPercentile(99)/1e3,
+                                latency.getPercentile(99.9)/1e3,latency.getMax()/1e3));
+                    }
+
+            Tibrv.close();
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    Case run(String layout, int dispatchers, long cost) throws TibrvException
+    {
+        Case result = new Case(cost);
+
+        // queues and listeners
+        int queueCount = layout.equals("queue") ? 1 : dispatchers;
+        TibrvQueue[] queues = new TibrvQueue[queueCount];
+        String[] subjects = new String[queueCount];
+        for (int i=0; i<queueCount; i++)
+        {
+            queues[i] = new TibrvQueue();
+            subjects[i] = "bench."+layout+"."+i;
+            new TibrvListener(queues[i],result,transport,subjects[i],null);
+        }
+
+        // dispatchers, quitting 0.2 seconds after the last message
+        TibrvDispatcher[] threads = new TibrvDispatcher[dispatchers];
+        TibrvQueueGroup group = null;
+        if (layout.equals("group"))
+        {
+            group = new TibrvQueueGroup();
+            for (TibrvQueue queue : queues)
+                group.add(queue);
+        }
+        for (int i=0; i<dispatchers; i++)
+        {
+            TibrvDispatchable dispatchable = group != null ? group :
+                                             queues[i % queueCount];
+            threads[i] = new TibrvDispatcher("Dispatcher-"+(i+1),dispatchable,0.2);
+        }
+
+        // publish
+        TibrvMsg msg = new TibrvMsg();
+        long interval = rate > 0 ? 1000000000L/rate : 0;
+        start = System.nanoTime();
+        for (int n=0; n<messages; n++)
+        {
+            if (interval > 0)
+            {
+                long next = start+n*interval;
+                while (System.nanoTime() < next)
+                    Thread.onSpinWait();
+            }
+            msg.setSendSubject(subjects[n % queueCount]);
+            msg.update("t",System.nanoTime());
+            transport.send(msg);
+        }
+
+        try
+        {
+            result.done.await();
+            for (TibrvDispatcher thread : threads)
+                thread.join();
+        }
+        catch (InterruptedException e)
+        {
+        }
+
+        if (group != null)
+            group.destroy();
+        for (TibrvQueue queue : queues)
+            queue.destroy();
+        return result;
+    }
+
+    public static void main(String args[])
+    {
+        new DispatchBench(args).execute();
+    }
+}
@@ -0,0 +1,133 @@
+
+/*
+ * DispatchMetrics - counters for message callbacks, per dispatcher thread
+ * and per listener
+ *
+ * wrap() returns a callback that times every call of the wrapped one
+ * and adds it to two sets of counters:
+ *
+ *   per dispatcher thread   messages processed, busy time inside
+ *                           callbacks, idle time and utilization since
+ *                           the thread first dispatched a message
+ *   per listener subject    messages processed and busy time
+ *
+ * Counters are LongAdders, so dispatcher threads never contend on them,
+ * and report() can be called from any thread while dispatch goes on.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DispatchMetrics
+{
+    static class Counters
+    {
+        final String    name;
+        final long      since = System.nanoTime();
+        final LongAdder processed = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+
+        Counters(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    final ConcurrentHashMap<String,Counters> dispatchers =
+            new ConcurrentHashMap<String,Counters>();
+    final ConcurrentHashMap<String,Counters> listeners =
+            new ConcurrentHashMap<String,Counters>();
+
+    final ThreadLocal<Counters> current = new ThreadLocal<Counters>() {
+        protected Counters initialValue()
+        {
+            return counters(dispatchers,Thread.currentThread().getName());
+        }
+    };
+
+    public TibrvMsgCallback wrap(final TibrvMsgCallback callback)
+    {
+        return new TibrvMsgCallback() {
+            public void onMsg(TibrvListener listener, TibrvMsg msg)
+            {
+                long start = System.nanoTime();
+                try
+                {
+                    callback.onMsg(listener,msg);
+                }
+                finally
+                {
+                    record(listener,System.nanoTime()-start);
+                }
+            }
+        };
+    }
+
+    public void record(TibrvListener listener, long nanos)
+    {
+        Counters thread = current.get();
+        thread.processed.increment();
+        thread.busyNanos.add(nanos);
+
+        Counters subject = counters(listeners,listener == null ? "-" : listener.getSubject());
+        subject.processed.increment();
+        subject.busyNanos.add(nanos);
+    }
+
+    public long processed()
+    {
+        long total = 0;
+        for (Counters counters : dispatchers.values())
+            total += counters.processed.sum();
+        return total;
+    }
+
+    public String report()
+    {
+        long now = System.nanoTime();
+        StringBuilder out = new StringBuilder();
+        for (Counters counters : sorted(dispatchers))
+        {
+            long busy = counters.busyNanos.sum();
+            long wall = Math.max(1,now-counters.since);
+            out.append(String.format("  dispatcher %s: %d msgs, busy %.3fs, idle %.3fs, utilization %.1f%%%n",
+                    counters.name,counters.processed.sum(),busy/1e9,
+                    Math.max(0,wall-busy)/1e9,100.0*busy/wall));
+        }
+        for (Counters counters : sorted(listeners))
+        {
+            long n = counters.processed.sum();
+            long busy = counters.busyNanos.sum();
+            out.append(String.format("  listener %s: %d msgs, busy %.3fs, %.1f us/msg%n",
+                    counters.name,n,busy/1e9,n == 0 ? 0 : busy/1e3/n));
+        }
+        return out.toString();
+    }
+
+    static Counters counters(ConcurrentHashMap<String,Counters> map, String name)
+    {
+        Counters counters = map.get(name);
+        if (counters == null)
+        {
+            Counters created = new Counters(name);
+            counters = map.putIfAbsent(name,created);
+            if (counters == null)
+                counters = created;
+        }
+        return counters;
+    }
+
+    static List<Counters> sorted(Map<String,Counters> map)
+    {
+        List<Counters> list = new ArrayList<Counters>(map.values());
+        Collections.sort(list,new Comparator<Counters>() {
+            public int compare(Counters a, Counters b)
+            {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return list;
+    }
+}
@@ -0,0 +1,215 @@
+
+/*
+ * DispatcherPool - dispatcher threads that grow and shrink with backlog
+ *
+ * A controller thread samples getCount() of the queue.  When the
+ * backlog exceeds backlogPerThread events for every running dispatcher
+ * thread, one more thread is started, up to maxThreads.  A dispatcher
+ * thread that has found nothing to dispatch for the cool-down period
+ * retires itself, down to minThreads.
+ *
+ * Scaling events are printed as they happen; metrics() returns the
+ * current thread count, backlog and scaling totals, and may be called
+ * from any thread.
+ *
+ * Example:
+ *
+ *  DispatcherPool pool = new DispatcherPool("Dispatcher",queue,1,8,1,3.0);
+ *  pool.start();
+ *  ...
+ *  pool.awaitIdle(3.0);
+ *  pool.shutdown();
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DispatcherPool
+{
+    static final long SAMPLE_MILLIS = 100;
+
+    final String     name;
+    final TibrvQueue queue;
+    final int        minThreads;
+    final int        maxThreads;
+    final int        backlogPerThread;
+    final double     coolDown;
+
+    final AtomicInteger threads    = new AtomicInteger();
+    final AtomicInteger peak       = new AtomicInteger();
+    final AtomicLong    scaleUps   = new AtomicLong();
+    final AtomicLong    scaleDowns = new AtomicLong();
+    final AtomicLong    lastActive = new AtomicLong(System.nanoTime());
+    final List<Thread>  workers    = Collections.synchronizedList(new ArrayList<Thread>());
+
+    volatile int     backlog = 0;
+    volatile boolean running = true;
+    int              serial  = 0;
+    Thread           controller;
+
+    public DispatcherPool(String name, TibrvQueue queue, int minThreads,
+                          int maxThreads, int backlogPerThread, double coolDown)
+    {
+        this.name             = name;
+        this.queue            = queue;
+        this.minThreads       = Math.max(1,minThreads);
+        this.maxThreads       = Math.max(this.minThreads,maxThreads);
+        this.backlogPerThread = Math.max(1,backlogPerThread);
+        this.coolDown         = coolDown;
+    }
+
+    public void start()
+    {
+        for (int i=0; i<minThreads; i++)
+            addThread();
+
+        controller = new Thread(name+"-controller") {
+            public void run()
+            {
+                control();
+            }
+        };
+        controller.setDaemon(true);
+        controller.start();
+    }
+
+    // Waits until the queue is empty and no thread has dispatched
+    // anything for the given time, like a TibrvDispatcher timeout.
+    public void awaitIdle(double seconds) throws InterruptedException
+    {
+        long idle = (long)(seconds*1e9);
+        while (backlog > 0 || queueCount() > 0 ||
+               System.nanoTime()-lastActive.get() < idle)
+            Thread.sleep(SAMPLE_MILLIS);
+    }
+
+    public void shutdown()
+    {
+        running = false;
+        controller.interrupt();
+        Thread[] all;
+        synchronized (workers)
+        {
+            all = workers.toArray(new Thread[0]);
+        }
+        for (Thread worker : all)
+        {
+            try
+            {
+                worker.join();
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    public String metrics()
+    {
+        return name+": threads "+threads.get()+" (peak "+peak.get()+"), backlog "+backlog+
+               ", scaled up "+scaleUps.get()+" times, down "+scaleDowns.get()+" times";
+    }
+
+    void control()
+    {
+        while (running)
+        {
+            int count = queueCount();
+            backlog = count;
+            int current = threads.get();
+            if (count > backlogPerThread*current && current < maxThreads)
+            {
+                addThread();
+                scaleUps.incrementAndGet();
+                log("backlog "+count+", added thread, now "+threads.get());
+            }
+            try
+            {
+                Thread.sleep(SAMPLE_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    synchronized void addThread()
+    {
+        int count = threads.incrementAndGet();
+        if (count > peak.get())
+            peak.set(count);
+        Thread worker = new Thread(name+"-"+(++serial)) {
+            public void run()
+            {
+                work();
+            }
+        };
+        workers.add(worker);
+        worker.start();
+    }
+
+    void work()
+    {
+        long idleSince = System.nanoTime();
+        long coolDownNanos = (long)(coolDown*1e9);
+        try
+        {
+            while (running)
+            {
+                if (queue.timedDispatch(Math.min(coolDown,0.5)))
+                {
+                    idleSince = System.nanoTime();
+                    lastActive.set(idleSince);
+                }
+                else if (System.nanoTime()-idleSince >= coolDownNanos && retire())
+                    return;     // already uncounted by retire()
+            }
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+        }
+        threads.decrementAndGet();
+    }
+
+    // called by an idle thread, returns true if it may exit
+    boolean retire()
+    {
+        while (true)
+        {
+            int current = threads.get();
+            if (current <= minThreads)
+                return false;
+            if (threads.compareAndSet(current,current-1))
+            {
+                workers.remove(Thread.currentThread());
+                scaleDowns.incrementAndGet();
+                log("idle for "+coolDown+"s, retired "+Thread.currentThread().getName()+
+                    ", now "+(current-1));
+                return true;
+            }
+        }
+    }
+
+    int queueCount()
+    {
+        try
+        {
+            return queue.getCount();
+        }
+        catch (TibrvException e)
+        {
+            return 0;
+        }
+    }
+
+    void log(String event)
+    {
+        System.err.println(name+" pool: "+event);
+    }
+}
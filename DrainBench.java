@@ -0,0 +1,137 @@
+
+/*
+ * DrainBench - TibrvDispatcher against DrainingDispatcher at several loads
+ *
+ * There are no parameters required to run this program.
+ * It uses the Java implementation and the process transport and does
+ * not need a daemon.
+ *
+ * For each publishing rate in RATES (0 is as fast as possible) the main
+ * thread publishes one second worth of messages, at least MIN_MESSAGES,
+ * stamped with System.nanoTime(), to one queue dispatched by one
+ * thread: a TibrvDispatcher, or a DrainingDispatcher draining up to
+ * each of DRAINS events per wake-up.  The callback does no work, so
+ * the cost of dispatching itself shows.
+ *
+ * The program prints messages per second from the first send to the
+ * last callback, events per wake-up and percentiles of the time from
+ * send to callback.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DrainBench implements TibrvMsgCallback
+{
+    static final long[] RATES        = { 10000, 100000, 500000, 0 };
+    static final int[]  DRAINS       = { 16, 256 };
+    static final int    MIN_MESSAGES = 200000;
+
+    TibrvTransport   transport;
+    TibrvQueue       queue;
+    LatencyHistogram latency = new LatencyHistogram();  // dispatcher thread only
+    AtomicLong       processed = new AtomicLong();
+    CountDownLatch   done;
+    int              messages;
+    volatile long    lastNanos;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            Tibrv.open(Tibrv.IMPL_JAVA);
+            new DrainBench().execute();
+            Tibrv.close();
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    void execute() throws TibrvException
+    {
+        transport = Tibrv.processTransport();
+        queue = new TibrvQueue();
+        new TibrvListener(queue,this,transport,"bench.drain",null);
+
+        // warm-up
+        run(0,0);
+        run(0,DRAINS[0]);
+
+        System.out.println("rate/s     dispatcher           msg/s  per wake-up     p50 us     p99 us");
+        for (long rate : RATES)
+        {
+            run(rate,0);
+            for (int drain : DRAINS)
+                run(rate,drain);
+        }
+    }
+
+    // drain 0 is a plain TibrvDispatcher
+    void run(long rate, int drain) throws TibrvException
+    {
+        messages = rate > 0 ? (int)Math.max(rate,MIN_MESSAGES) : MIN_MESSAGES;
+        processed.set(0);
+        latency.reset();
+        done = new CountDownLatch(1);
+
+        Thread dispatcher;
+        if (drain > 0)
+            dispatcher = new DrainingDispatcher("Drain-"+drain,queue,drain,0.2);
+        else
+            dispatcher = new TibrvDispatcher("Dispatcher",queue,0.2);
+
+        TibrvMsg msg = new TibrvMsg();
+        msg.setSendSubject("bench.drain");
+        long interval = rate > 0 ? 1000000000L/rate : 0;
+        long start = System.nanoTime();
+        for (int n=0; n<messages; n++)
+        {
+            if (interval > 0)
+            {
+                long next = start+n*interval;
+                while (System.nanoTime() < next)
+                    Thread.onSpinWait();
+            }
+            msg.update("t",System.nanoTime());
+            transport.send(msg);
+        }
+
+        try
+        {
+            done.await();
+            dispatcher.join();
+        }
+        catch (InterruptedException e)
+        {
+        }
+
+        String perWakeup = drain > 0 ?
+                String.format("%.1f",((DrainingDispatcher)dispatcher).eventsPerWakeup()) : "1";
+        System.out.println(String.format("%-10s %-12s %12.0f %12s %10.1f %10.1f",
+                rate > 0 ? String.valueOf(rate) : "max",
+                drain > 0 ? "drain "+drain : "TibrvDisp.",
+                messages*1e9/Math.max(1,lastNanos-start),perWakeup,
+                latency.getPercentile(50)/1e3,latency.getPercentile(99)/1e3));
+    }
+
+    public void onMsg(TibrvListener listener, TibrvMsg msg)
+    {
+        try
+        {
+            latency.record(System.nanoTime()-msg.getAsLong("t",0));
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+        }
+        if (processed.incrementAndGet() == messages)
+        {
+            lastNanos = System.nanoTime();
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+
+/*
+ * DrainingDispatcher - dispatcher thread that drains several events per
+ *                      wake-up
+ *
+ * TibrvDispatcher waits for and dispatches one event at a time.  Once
+ * this thread has been woken by an event it keeps dispatching with
+ * poll(), which never waits, until maxDrain events were dispatched or
+ * the queue is empty, and only then waits again.  Under load that
+ * saves the wait and wake-up between events.
+ *
+ * Like TibrvDispatcher the thread starts at once and, given a timeout
+ * of zero or more seconds, quits when no event arrived for that long.
+ * A negative timeout dispatches until stopDispatching() is called.
+ *
+ * Example:
+ *
+ *  DrainingDispatcher dispatcher = new DrainingDispatcher("Dispatcher",queue,64,3);
+ *  ...
+ *  dispatcher.join();
+ *  System.err.println(dispatcher.report());
+ */
+
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class DrainingDispatcher extends Thread
+{
+    final TibrvDispatchable dispatchable;
+    final int               maxDrain;
+    final double            timeout;
+
+    final AtomicLong wakeups = new AtomicLong();
+    final AtomicLong events  = new AtomicLong();
+
+    volatile boolean running = true;
+
+    public DrainingDispatcher(String name, TibrvDispatchable dispatchable,
+                              int maxDrain, double timeout)
+    {
+        super(name);
+        this.dispatchable = dispatchable;
+        this.maxDrain     = Math.max(1,maxDrain);
+        this.timeout      = timeout;
+        start();
+    }
+
+    public void run()
+    {
+        long idleSince = System.nanoTime();
+        try
+        {
+            while (running)
+            {
+                // wake up now and then to notice stop() and the timeout
+                if (!dispatchable.timedDispatch(0.1))
+                {
+                    if (timeout >= 0 && System.nanoTime()-idleSince >= timeout*1e9)
+                        return;
+                    continue;
+                }
+                int n = 1;
+                while (n < maxDrain && dispatchable.poll())
+                    n++;
+                wakeups.incrementAndGet();
+                events.addAndGet(n);
+                idleSince = System.nanoTime();
+            }
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+        }
+    }
+
+    public void stopDispatching()
+    {
+        running = false;
+    }
+
+    public double eventsPerWakeup()
+    {
+        long n = wakeups.get();
+        return n == 0 ? 0 : (double)events.get()/n;
+    }
+
+    public String report()
+    {
+        return String.format("%s: %d events in %d wake-ups, %.1f per wake-up (at most %d)",
+                getName(),events.get(),wakeups.get(),eventsPerWakeup(),maxDrain);
+    }
+}
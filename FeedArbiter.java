@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import com.tibco.tibrv.TibrvException;
+import com.tibco.tibrv.TibrvListener;
+import com.tibco.tibrv.TibrvMsg;
+import com.tibco.tibrv.TibrvMsgCallback;
+import com.tibco.tibrv.TibrvTimer;
+import com.tibco.tibrv.TibrvTimerCallback;
+
+/**
+ * Arbitrates between two copies of the same feed received on two
+ * transports, leg A and leg B, and forwards only the first copy of each
+ * sequence number.
+ *
+ * Listeners on both legs use the arbiter as their callback, with closure
+ * {@link #LEG_A} or {@link #LEG_B}. Both must be dispatched by the same
+ * thread; the arbiter is not synchronized.
+ *
+ * Sequence numbers are tracked in a sliding window of {@link #WINDOW}
+ * numbers. For every number the window remembers which legs delivered it
+ * and when the first copy arrived. When the second copy arrives, the time
+ * since the first is recorded as the lag of that leg. When a number leaves
+ * the window having been seen on one leg only, it counts as lost on the
+ * other. Copies older than the window are dropped as late.
+ *
+ * A publisher that restarts its sequence sends numbers far below the
+ * highest, which would all be dropped as late. A single leg doing that
+ * may just be lagging, and its copies may have been forwarded already,
+ * so they are dropped. The arbiter only takes it as a restart when both
+ * legs deliver such low numbers within {@link #RESTART_SPAN_MILLIS} of
+ * each other and less than the window apart, or, while the other leg
+ * has delivered nothing for that long, when the number is from 0 to
+ * below {@link #RESTART_START}, the start of a sequence. It then starts
+ * over with an empty window from the number that tripped it. Copies
+ * dropped before the restart was recognized stay counted as late.
+ */
+public class FeedArbiter implements TibrvMsgCallback, TibrvTimerCallback
+{
+
+	public static final Integer LEG_A = 0;
+	public static final Integer LEG_B = 1;
+
+	static final String[] LEG_NAMES = { "A", "B" };
+	static final int WINDOW = 4096;
+	static final long RESTART_START = 16;
+	static final long RESTART_SPAN_MILLIS = 1000;
+
+	final String field;
+	final TibrvMsgCallback downstream;
+
+	final long[] seqs = new long[WINDOW];
+	final boolean[] used = new boolean[WINDOW];
+	final byte[] seen = new byte[WINDOW];
+	final long[] firstArrival = new long[WINDOW];
+	long highest = Long.MIN_VALUE;
+	final long[] lastArrival = new long[2];
+	final long[] lowAt = new long[2];	// last low copy per leg, 0 if none since
+	final long[] lowSeq = new long[2];
+	long restarts = 0;
+
+	final long[] wins = new long[2];
+	final long[] losses = new long[2];
+	final long[] duplicates = new long[2];
+	final long[] late = new long[2];
+	final LatencyHistogram[] lag = { new LatencyHistogram(), new LatencyHistogram() };
+	long missingField = 0;
+
+	public FeedArbiter(String field, TibrvMsgCallback downstream)
+	{
+		this.field = field;
+		this.downstream = downstream;
+	}
+
+	public void onMsg(TibrvListener listener, TibrvMsg msg)
+	{
+		long now = System.nanoTime();
+		int leg = ((Integer) listener.getClosure()).intValue();
+
+		long seq;
+		try {
+			seq = msg.getAsLong(field, 0);
+		} catch (TibrvException e) {
+			missingField++;
+			return;
+		}
+		lastArrival[leg] = now;
+
+		if (highest != Long.MIN_VALUE && seq <= highest - WINDOW) {
+			if (!restarted(leg, seq, now)) {
+				late[leg]++;
+				return;
+			}
+			restart();
+		}
+		lowAt[leg] = 0;
+		if (seq > highest) {
+			highest = seq;
+		}
+
+		int slot = (int) (seq & (WINDOW - 1));
+		if (!used[slot] || seqs[slot] != seq) {
+			evict(slot);
+			used[slot] = true;
+			seqs[slot] = seq;
+			seen[slot] = (byte) (1 << leg);
+			firstArrival[slot] = now;
+			wins[leg]++;
+			downstream.onMsg(listener, msg);
+			return;
+		}
+
+		if ((seen[slot] & (1 << leg)) != 0) {
+			duplicates[leg]++;
+			return;
+		}
+		seen[slot] |= (byte) (1 << leg);
+		lag[leg].record(now - firstArrival[slot]);
+	}
+
+	/**
+	 * Decides whether a copy far below the highest number starts a new
+	 * sequence, rather than being a late copy from a lagging leg.
+	 */
+	boolean restarted(int leg, long seq, long now)
+	{
+		long span = RESTART_SPAN_MILLIS * 1000000;
+		int other = 1 - leg;
+		lowAt[leg] = now;
+		lowSeq[leg] = seq;
+		if (lowAt[other] != 0 && now - lowAt[other] <= span && Math.abs(seq - lowSeq[other]) < WINDOW) {
+			return true;
+		}
+		boolean otherDown = lastArrival[other] == 0 || now - lastArrival[other] > span;
+		return otherDown && seq >= 0 && seq < RESTART_START;
+	}
+
+	/** Forgets the window after the publisher restarted its sequence. */
+	void restart()
+	{
+		restarts++;
+		highest = Long.MIN_VALUE;
+		Arrays.fill(used, false);
+		Arrays.fill(seen, (byte) 0);
+		lowAt[0] = 0;
+		lowAt[1] = 0;
+	}
+
+	/** Counts a number leaving the window on one leg only as lost on the other. */
+	void evict(int slot)
+	{
+		if (!used[slot]) {
+			return;
+		}
+		if (seen[slot] == 1) {
+			losses[1]++;
+		} else if (seen[slot] == 2) {
+			losses[0]++;
+		}
+	}
+
+	public void onTimer(TibrvTimer timer)
+	{
+		System.err.print(report());
+	}
+
+	public String report()
+	{
+		long total = wins[0] + wins[1];
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("--- arbitration on %s: %d forwarded, highest %d, %d restarts, %d without %s%n", field,
+				total, highest, restarts, missingField, field));
+		for (int leg = 0; leg < 2; leg++) {
+			out.append(String.format("leg %s: won %d (%.1f%%), lost %d, duplicates %d, late %d, lag behind other leg %s%n",
+					LEG_NAMES[leg], wins[leg], total == 0 ? 0 : 100.0 * wins[leg] / total, losses[leg], duplicates[leg],
+					late[leg], lag[leg].summary(1000, "us")));
+		}
+		return out.toString();
+	}
+
+}
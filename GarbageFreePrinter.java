@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import com.tibco.tibrv.TibrvException;
+import com.tibco.tibrv.TibrvListener;
+import com.tibco.tibrv.TibrvMsg;
+import com.tibco.tibrv.TibrvMsgCallback;
+
+/**
+ * Prints messages with the timestamp, subject and reply of
+ * TibcoListener.onMsg, but the fields in the compact, escaped format of
+ * {@link MsgFormatter} instead of msg.toString(), and without creating
+ * garbage of its own on the callback path.
+ *
+ * <ul>
+ * <li>The timestamp prefix is formatted once a second by a ticker
+ * thread, the callback only copies the cached bytes.</li>
+ * <li>Subject, reply and fields are written into one reused
+ * {@link MsgFormatter} buffer, no Strings are concatenated.</li>
+ * <li>Lines collect in the buffer and are written in batches, when the
+ * buffer is full or by the ticker every flush interval, instead of one
+ * write and flush per message.</li>
+ * </ul>
+ *
+ * Some garbage is left, created by the Rendezvous library:
+ * getFieldByIndex() returns a new TibrvMsgField for every field, the
+ * library may create its data object (a String, a boxed number) as
+ * well, and floating point values go through Double.toString(). What
+ * that amounts to per message depends on the fields and the library;
+ * TibcoListener -gccheck measures it. Call {@link #close()} on exit to
+ * write out the last lines.
+ */
+public class GarbageFreePrinter implements TibrvMsgCallback
+{
+
+	static final int BATCH_BYTES = 64 * 1024;
+
+	final OutputStream out;
+	final long flushMillis;
+	final MsgFormatter buffer = new MsgFormatter(MsgFormatter.COMPACT);
+
+	volatile byte[] prefix;
+	volatile boolean running = true;
+
+	public GarbageFreePrinter(OutputStream out, long flushMillis)
+	{
+		this.out = out;
+		this.flushMillis = flushMillis;
+		updatePrefix();
+
+		Thread ticker = new Thread("GarbageFreePrinter-ticker") {
+			public void run()
+			{
+				tick();
+			}
+		};
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	public void onMsg(TibrvListener listener, TibrvMsg msg)
+	{
+		synchronized (buffer) {
+			int start = buffer.length();
+			try {
+				buffer.append(prefix);
+				buffer.appendAscii(": subject=");
+				buffer.appendText(msg.getSendSubject());
+				buffer.appendAscii(", reply=");
+				buffer.appendText(msg.getReplySubject());
+				buffer.appendAscii(", message=");
+				buffer.appendFields(msg);
+				buffer.appendNewline();
+			} catch (TibrvException e) {
+				// drop the partial line
+				buffer.length = start;
+				e.printStackTrace();
+			}
+			if (buffer.length() >= BATCH_BYTES) {
+				flush();
+			}
+		}
+	}
+
+	/** Writes out whatever is buffered. */
+	public void flush()
+	{
+		synchronized (buffer) {
+			if (buffer.length() == 0) {
+				return;
+			}
+			try {
+				buffer.writeTo(out);
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			buffer.clear();
+		}
+	}
+
+	public void close()
+	{
+		running = false;
+		flush();
+	}
+
+	void updatePrefix()
+	{
+		prefix = new Date().toString().getBytes();
+	}
+
+	/** Refreshes the prefix every second and flushes every flush interval. */
+	void tick()
+	{
+		long second = System.currentTimeMillis() / 1000;
+		long lastFlush = System.currentTimeMillis();
+		while (running) {
+			try {
+				Thread.sleep(Math.min(flushMillis, 100));
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (now / 1000 != second) {
+				second = now / 1000;
+				updatePrefix();
+			}
+			if (now - lastFlush >= flushMillis) {
+				lastFlush = now;
+				flush();
+			}
+		}
+	}
+
+}
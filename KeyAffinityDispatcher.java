@@ -0,0 +1,252 @@
+
+/*
+ * KeyAffinityDispatcher - parallel dispatch that keeps per-key order
+ *
+ * Used as the callback of listeners whose queue is dispatched by a
+ * single intake dispatcher.  For every message the intake extracts a
+ * key and hands the message to one of N worker lanes chosen by hash of
+ * the key.  Each lane is one thread calling the real callback, so all
+ * messages with the same key are processed in arrival order, while
+ * different keys are processed in parallel.  Inbound messages are only
+ * valid during the dispatch that delivered them, so the intake hands
+ * the lanes a copy, which is disposed after the callback returned.
+ *
+ * The key is given as
+ *
+ *   token:N       the Nth token of the send subject, counting from 0;
+ *                 negative counts from the end (-1 is the last token)
+ *   field:NAME    the value of field NAME of the message
+ *   subject       the whole send subject
+ *
+ * A message without the key token or field goes by its whole subject.
+ * Array fields, such as opaque data, are keyed by their contents.
+ *
+ * Each lane holds at most capacity pending messages; when a lane is
+ * full the intake waits, which backs up the Rendezvous queue instead
+ * of growing memory.  If the intake is interrupted while it waits, the
+ * message is dropped and counted.  report() shows messages and queue
+ * depth per lane, the skew (busiest lane over the average) and the
+ * messages dropped, and may be called from any thread.
+ *
+ * Example:
+ *
+ *  KeyAffinityDispatcher lanes =
+ *          new KeyAffinityDispatcher("Lane",4,1000,"token:1",callback);
+ *  new TibrvListener(queue,lanes,transport,"ACCOUNT.>",null);
+ *  new TibrvDispatcher("Intake",queue);
+ *  ...
+ *  lanes.shutdown();
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class KeyAffinityDispatcher implements TibrvMsgCallback
+{
+    static class Event
+    {
+        final TibrvListener listener;
+        final TibrvMsg      msg;
+
+        Event(TibrvListener listener, TibrvMsg msg)
+        {
+            this.listener = listener;
+            this.msg      = msg;
+        }
+    }
+
+    // marks the end of a lane's queue on shutdown
+    static final Event STOP = new Event(null,null);
+
+    class Lane extends Thread
+    {
+        final BlockingQueue<Event> pending;
+        final AtomicLong           processed = new AtomicLong();
+        final AtomicInteger        peak      = new AtomicInteger();
+
+        Lane(String name, int capacity)
+        {
+            super(name);
+            pending = new ArrayBlockingQueue<Event>(capacity);
+        }
+
+        void add(Event event) throws InterruptedException
+        {
+            pending.put(event);
+            int depth = pending.size();
+            if (depth > peak.get())
+                peak.set(depth);
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Event event = pending.take();
+                    if (event == STOP)
+                        return;
+                    try
+                    {
+                        callback.onMsg(event.listener,event.msg);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        event.msg.dispose();
+                    }
+                    processed.incrementAndGet();
+                }
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    final TibrvMsgCallback callback;
+    final Lane[]           lanes;
+    final int              token;
+    final String           field;
+    final AtomicLong       dropped = new AtomicLong();
+
+    public KeyAffinityDispatcher(String name, int laneCount, int capacity,
+                                 String key, TibrvMsgCallback callback)
+    {
+        this.callback = callback;
+        if (key.startsWith("token:"))
+        {
+            token = Integer.parseInt(key.substring(6));
+            field = null;
+        }
+        else if (key.startsWith("field:") && key.length() > 6)
+        {
+            token = Integer.MIN_VALUE;
+            field = key.substring(6);
+        }
+        else if (key.equals("subject"))
+        {
+            token = Integer.MIN_VALUE;
+            field = null;
+        }
+        else
+            throw new IllegalArgumentException("Unknown key: "+key);
+
+        lanes = new Lane[Math.max(1,laneCount)];
+        for (int i=0; i<lanes.length; i++)
+        {
+            lanes[i] = new Lane(name+"-"+(i+1),Math.max(1,capacity));
+            lanes[i].start();
+        }
+    }
+
+    // Intake: runs on the dispatcher thread of the listener's queue
+    public void onMsg(TibrvListener listener, TibrvMsg msg)
+    {
+        String key = key(msg);
+        Lane lane = lanes[Math.floorMod(key == null ? 0 : key.hashCode(),lanes.length)];
+        TibrvMsg copy;
+        try
+        {
+            copy = new TibrvMsg(msg);
+        }
+        catch (TibrvException e)
+        {
+            dropped.incrementAndGet();
+            e.printStackTrace();
+            return;
+        }
+        try
+        {
+            lane.add(new Event(listener,copy));
+        }
+        catch (InterruptedException e)
+        {
+            dropped.incrementAndGet();
+            copy.dispose();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String key(TibrvMsg msg)
+    {
+        String subject = msg.getSendSubject();
+        if (field != null)
+        {
+            try
+            {
+                Object value = msg.get(field);
+                if (value != null && value.getClass().isArray())
+                    return Arrays.deepToString(new Object[] { value });
+                if (value != null)
+                    return value.toString();
+            }
+            catch (TibrvException e)
+            {
+            }
+        }
+        else if (token != Integer.MIN_VALUE && subject != null)
+        {
+            String[] tokens = subject.split("\\.");
+            int index = token < 0 ? tokens.length+token : token;
+            if (index >= 0 && index < tokens.length)
+                return tokens[index];
+        }
+        return subject;
+    }
+
+    // Lets the lanes finish what they hold, then stops them.
+    // The intake must have stopped before.
+    public void shutdown()
+    {
+        for (Lane lane : lanes)
+        {
+            try
+            {
+                lane.pending.put(STOP);
+            }
+            catch (InterruptedException e)
+            {
+                lane.interrupt();
+            }
+        }
+        for (Lane lane : lanes)
+        {
+            try
+            {
+                lane.join();
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    public String report()
+    {
+        long total = 0;
+        long busiest = 0;
+        int  depth = 0;
+        StringBuilder out = new StringBuilder();
+        for (Lane lane : lanes)
+        {
+            long n = lane.processed.get();
+            int pending = lane.pending.size();
+            total += n;
+            depth += pending;
+            busiest = Math.max(busiest,n+pending);
+            out.append("  "+lane.getName()+": "+n+" msgs, depth "+pending+
+                       " (peak "+lane.peak.get()+")\n");
+        }
+        double mean = (double)(total+depth)/lanes.length;
+        out.append(String.format("  %d lanes: %d msgs, depth %d, skew %.2f, %d dropped%n",
+                lanes.length,total,depth,mean == 0 ? 1.0 : busiest/mean,dropped.get()));
+        return out.toString();
+    }
+}
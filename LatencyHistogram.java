@@ -0,0 +1,140 @@
+
+/*
+ * LatencyHistogram - log-linear histogram of non-negative long values
+ *
+ * Values below 128 are counted exactly.  Above that, every power of
+ * two range is split into 64 equal buckets, so a recorded value is
+ * off by less than 1/64 (about 1.6%) of itself.  That is the scheme
+ * of HdrHistogram, but half its resolution at two significant digits,
+ * which splits every power of two into 128 buckets.  The whole range
+ * of long fits into 3712 counters.
+ *
+ * record() does not allocate and is not synchronized; callers that
+ * record from several threads must synchronize on the histogram.
+ */
+
+public class LatencyHistogram
+{
+    static final int SUB_BITS  = 7;
+    static final int SUB_COUNT = 1 << SUB_BITS;          // 128
+    static final int HALF      = SUB_COUNT >> 1;          // 64
+    static final int BUCKETS   = (63-SUB_BITS)*HALF+SUB_COUNT; // 3712
+
+    final long[] counts = new long[BUCKETS];
+    long total    = 0;
+    long negative = 0;      // values below zero, recorded as zero
+    long min      = Long.MAX_VALUE;
+    long max      = 0;
+    double sum    = 0;
+
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            negative++;
+            value = 0;
+        }
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    public long getCount()
+    {
+        return total;
+    }
+
+    public long getNegativeCount()
+    {
+        return negative;
+    }
+
+    public long getMin()
+    {
+        return total == 0 ? 0 : min;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        return total == 0 ? 0 : sum/total;
+    }
+
+    // Returns the value at the given percentile (0..100), as the
+    // highest value of the bucket it falls into.
+    public long getPercentile(double percentile)
+    {
+        if (total == 0)
+            return 0;
+        long rank = (long)Math.ceil(percentile/100*total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestEquivalent(i),max);
+        }
+        return max;
+    }
+
+    public void add(LatencyHistogram other)
+    {
+        for (int i=0; i<BUCKETS; i++)
+            counts[i] += other.counts[i];
+        total    += other.total;
+        negative += other.negative;
+        sum      += other.sum;
+        if (other.total > 0)
+        {
+            min = Math.min(min,other.min);
+            max = Math.max(max,other.max);
+        }
+    }
+
+    public void reset()
+    {
+        java.util.Arrays.fill(counts,0);
+        total    = 0;
+        negative = 0;
+        min      = Long.MAX_VALUE;
+        max      = 0;
+        sum      = 0;
+    }
+
+    // one line summary with values divided by 'scale' and
+    // printed with the given unit, e.g. scale 1000 for us
+    public String summary(double scale, String unit)
+    {
+        return String.format("n=%d min=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f mean=%.1f %s",
+                total,getMin()/scale,getPercentile(50)/scale,getPercentile(90)/scale,
+                getPercentile(99)/scale,getPercentile(99.9)/scale,getMax()/scale,
+                getMean()/scale,unit);
+    }
+
+    static int index(long value)
+    {
+        if (value < SUB_COUNT)
+            return (int)value;
+        int shift = 63-Long.numberOfLeadingZeros(value)-(SUB_BITS-1);
+        return shift*HALF+(int)(value >>> shift);
+    }
+
+    static long highestEquivalent(int index)
+    {
+        if (index < SUB_COUNT)
+            return index;
+        int shift = index/HALF-1;
+        long lowest = (long)(index-shift*HALF) << shift;
+        return lowest+(1L << shift)-1;
+    }
+}
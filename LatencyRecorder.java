@@ -0,0 +1,172 @@
+
+/*
+ * LatencyRecorder - one-way latency per subject from a send timestamp field
+ *
+ * The publisher puts its clock into a message field as epoch
+ * nanoseconds, microseconds or milliseconds.  On receipt the latency
+ * is the local epoch time minus that field, recorded into a
+ * LatencyHistogram per subject.  The result is only as good as the
+ * clock synchronization between the hosts.
+ *
+ * The local epoch time is taken from System.nanoTime(), anchored to
+ * System.currentTimeMillis() when the recorder is created and again
+ * on every report, so that reading the clock does not allocate.
+ *
+ * At most maxSubjects subjects get a histogram of their own, further
+ * subjects are recorded in a shared "(other)" histogram.  Histograms
+ * are never reset, so every report is cumulative since the recorder
+ * was created.
+ *
+ * record() may be called from several dispatcher threads.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import com.tibco.tibrv.*;
+
+public class LatencyRecorder
+{
+    final String field;
+    final long   nanosPerUnit;
+    final int    maxSubjects;
+
+    final ConcurrentHashMap<String,LatencyHistogram> histograms =
+            new ConcurrentHashMap<String,LatencyHistogram>();
+    final LatencyHistogram other = new LatencyHistogram();
+
+    volatile long epochNanosAtAnchor;
+    volatile long nanoTimeAtAnchor;
+
+    long missing = 0;       // messages without a usable timestamp field
+
+    // spec is FIELD[:ns|us|ms], microseconds by default
+    public LatencyRecorder(String spec, int maxSubjects)
+    {
+        int colon = spec.lastIndexOf(':');
+        String unit = "us";
+        if (colon > 0)
+        {
+            unit = spec.substring(colon+1);
+            spec = spec.substring(0,colon);
+        }
+        if (unit.equals("ns"))
+            nanosPerUnit = 1;
+        else if (unit.equals("us"))
+            nanosPerUnit = 1000;
+        else if (unit.equals("ms"))
+            nanosPerUnit = 1000000;
+        else
+            throw new IllegalArgumentException("Unknown time unit: "+unit);
+        this.field = spec;
+        this.maxSubjects = maxSubjects;
+        anchor();
+    }
+
+    // re-anchors the clock to the wall clock, which may be
+    // adjusted by time synchronization while we run
+    void anchor()
+    {
+        nanoTimeAtAnchor   = System.nanoTime();
+        epochNanosAtAnchor = System.currentTimeMillis()*1000000;
+    }
+
+    long epochNanos()
+    {
+        return epochNanosAtAnchor+(System.nanoTime()-nanoTimeAtAnchor);
+    }
+
+    public void record(TibrvMsg msg)
+    {
+        long now = epochNanos();
+        long sent;
+        try
+        {
+            sent = msg.getAsLong(field,0);
+        }
+        catch (TibrvException e)
+        {
+            synchronized (other)
+            {
+                missing++;
+            }
+            return;
+        }
+
+        LatencyHistogram histogram = histograms.get(msg.getSendSubject());
+        if (histogram == null)
+            histogram = create(msg.getSendSubject());
+        synchronized (histogram)
+        {
+            histogram.record(now-sent*nanosPerUnit);
+        }
+    }
+
+    LatencyHistogram create(String subject)
+    {
+        if (histograms.size() >= maxSubjects)
+            return other;
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram existing = histograms.putIfAbsent(subject,histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    // Returns percentiles in microseconds over all subjects and
+    // for the 'top' subjects with the most messages.  Only those
+    // are summarized, the others are just added to the total.
+    public String report(int top)
+    {
+        anchor();
+
+        final Map<String,Long> counts = new HashMap<String,Long>();
+        PriorityQueue<String> busiest = new PriorityQueue<String>(top+1,new Comparator<String>() {
+            public int compare(String a, String b)
+            {
+                return Long.compare(counts.get(a),counts.get(b));
+            }
+        });
+        LatencyHistogram all = new LatencyHistogram();
+        for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet())
+        {
+            LatencyHistogram histogram = entry.getValue();
+            synchronized (histogram)
+            {
+                all.add(histogram);
+                counts.put(entry.getKey(),histogram.getCount());
+            }
+            busiest.add(entry.getKey());
+            if (busiest.size() > top)
+                busiest.poll();
+        }
+        String otherLine = null;
+        long missing;
+        synchronized (other)
+        {
+            all.add(other);
+            if (other.getCount() > 0)
+                otherLine = other.summary(1000,"us");
+            missing = this.missing;
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("--- latency %s since start: %s%n",field,all.summary(1000,"us")));
+        if (all.getNegativeCount() > 0 || missing > 0)
+            out.append(String.format("  %d negative (clock skew), %d without %s%n",
+                    all.getNegativeCount(),missing,field));
+
+        List<String> subjects = new ArrayList<String>(busiest);
+        Collections.sort(subjects,Collections.reverseOrder(busiest.comparator()));
+        for (String subject : subjects)
+        {
+            LatencyHistogram histogram = histograms.get(subject);
+            String line;
+            synchronized (histogram)
+            {
+                line = histogram.summary(1000,"us");
+            }
+            out.append(String.format("  %s: %s%n",subject,line));
+        }
+        if (otherLine != null)
+            out.append(String.format("  (other): %s%n",otherLine));
+        return out.toString();
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.List;
+import com.tibco.tibrv.TibrvMsg;
+
+/**
+ * Receives messages in batches from a {@link BatchDispatcher}.
+ *
+ * The list and the messages in it are only valid until onMsgs returns:
+ * the messages are copies that are disposed afterwards, and the list is
+ * reused for the next batch. Copy a message to keep it longer.
+ */
+public interface MsgBatchCallback
+{
+
+	void onMsgs(List<TibrvMsg> msgs);
+
+}
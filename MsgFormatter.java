@@ -0,0 +1,474 @@
+
+/*
+ * MsgFormatter - streaming message formatter writing into a reused buffer
+ *
+ * Walks the fields of a message with getNumFields()/getFieldByIndex()
+ * and writes each value straight into a byte buffer that is reused for
+ * every message, instead of building the String of msg.toString().
+ * Integers, booleans, strings and binary data are encoded without
+ * creating intermediate Strings; non-integral floating point values
+ * still go through Double.toString().
+ *
+ * Two formats are supported:
+ *
+ *  JSON     one JSON object per line:
+ *           {"time":1034000000000,"subject":"a.b","reply":null,
+ *            "msg":{"DATA":"hello","N":5}}
+ *           opaque data is base64 encoded, date fields are epoch
+ *           milliseconds, nested messages are nested objects.
+ *
+ *  COMPACT  one line of space separated name=value pairs:
+ *           1034000000000 a.b - DATA=hello N=5
+ *           nested messages are written as {name=value ...}, null
+ *           subjects and values as '-'.  In subjects, names and string
+ *           values a backslash escapes space, '=', '{', '}', a
+ *           leading '-' and itself; newline, return and tab are
+ *           written as \n, \r and \t and other control characters as
+ *           a backslash, 'u' and four hex digits, so every message
+ *           stays on one line and can be split again at the unescaped
+ *           spaces and '='.
+ *
+ * The append methods let callers build their own line layout in the
+ * same buffer, or let it collect several lines before writing them.
+ *
+ * A formatter is not synchronized; use one per thread.
+ */
+
+import java.io.*;
+import com.tibco.tibrv.*;
+
+public class MsgFormatter
+{
+    public static final int JSON    = 0;
+    public static final int COMPACT = 1;
+
+    static final byte[] DIGITS = "0123456789abcdef".getBytes();
+    static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    final int format;
+    byte[]    buffer = new byte[4096];
+    int       length = 0;
+
+    public MsgFormatter(int format)
+    {
+        this.format = format;
+    }
+
+    public static int parseFormat(String name)
+    {
+        if (name.equals("json"))
+            return JSON;
+        if (name.equals("compact"))
+            return COMPACT;
+        throw new IllegalArgumentException("Unknown format: "+name);
+    }
+
+    // Formats the message as one line, terminated by a newline,
+    // replacing whatever the buffer held before.
+    public void format(TibrvMsg msg, long timeMillis) throws TibrvException
+    {
+        length = 0;
+        if (format == JSON)
+        {
+            writeAscii("{\"time\":");
+            writeLong(timeMillis);
+            writeAscii(",\"subject\":");
+            writeJsonString(msg.getSendSubject());
+            writeAscii(",\"reply\":");
+            writeJsonString(msg.getReplySubject());
+            writeAscii(",\"msg\":");
+            writeJsonMsg(msg);
+            writeByte('}');
+        }
+        else
+        {
+            writeLong(timeMillis);
+            writeByte(' ');
+            writeCompactText(msg.getSendSubject());
+            writeByte(' ');
+            writeCompactText(msg.getReplySubject());
+            writeCompactFields(msg);
+        }
+        writeByte('\n');
+    }
+
+    public void clear()
+    {
+        length = 0;
+    }
+
+    public void append(byte[] bytes)
+    {
+        ensure(bytes.length);
+        System.arraycopy(bytes,0,buffer,length,bytes.length);
+        length += bytes.length;
+    }
+
+    // appends ASCII text, such as constant labels
+    public void appendAscii(String text)
+    {
+        writeAscii(text);
+    }
+
+    // appends the string as UTF-8, null as '-'
+    public void appendText(String text)
+    {
+        writeText(text);
+    }
+
+    // appends the fields in compact format, enclosed in braces
+    public void appendFields(TibrvMsg msg) throws TibrvException
+    {
+        writeByte('{');
+        writeCompactFields(msg);
+        writeAscii(" }");
+    }
+
+    public void appendNewline()
+    {
+        writeByte('\n');
+    }
+
+    public byte[] buffer()
+    {
+        return buffer;
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    public void writeTo(OutputStream out) throws IOException
+    {
+        out.write(buffer,0,length);
+    }
+
+    //---------------------------------------------------------------
+    // JSON
+    //---------------------------------------------------------------
+
+    void writeJsonMsg(TibrvMsg msg) throws TibrvException
+    {
+        writeByte('{');
+        int count = msg.getNumFields();
+        for (int i=0; i<count; i++)
+        {
+            TibrvMsgField field = msg.getFieldByIndex(i);
+            if (i > 0)
+                writeByte(',');
+            writeJsonString(field.name == null ? "" : field.name);
+            writeByte(':');
+            writeJsonValue(field.data);
+        }
+        writeByte('}');
+    }
+
+    void writeJsonValue(Object data) throws TibrvException
+    {
+        if (data == null)
+            writeAscii("null");
+        else if (data instanceof String)
+            writeJsonString((String)data);
+        else if (data instanceof TibrvMsg)
+            writeJsonMsg((TibrvMsg)data);
+        else if (data instanceof byte[])
+        {
+            writeByte('"');
+            writeBase64((byte[])data);
+            writeByte('"');
+        }
+        else if (!writeScalar(data))
+        {
+            if (data.getClass().isArray())
+                writeArray(data,true);
+            else
+                writeJsonString(data.toString());
+        }
+    }
+
+    void writeJsonString(String value)
+    {
+        if (value == null)
+        {
+            writeAscii("null");
+            return;
+        }
+        writeByte('"');
+        int n = value.length();
+        for (int i=0; i<n; i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                writeByte('\\');
+                writeByte(c);
+            }
+            else if (c < 0x20)
+            {
+                writeAscii("\\u00");
+                writeByte(DIGITS[c >> 4]);
+                writeByte(DIGITS[c & 0xf]);
+            }
+            else if (c < 0x80)
+                writeByte(c);
+            else
+                i = writeUtf8(value,i);
+        }
+        writeByte('"');
+    }
+
+    //---------------------------------------------------------------
+    // compact text
+    //---------------------------------------------------------------
+
+    void writeCompactFields(TibrvMsg msg) throws TibrvException
+    {
+        int count = msg.getNumFields();
+        for (int i=0; i<count; i++)
+        {
+            TibrvMsgField field = msg.getFieldByIndex(i);
+            writeByte(' ');
+            if (field.name != null)
+                writeCompactText(field.name);
+            writeByte('=');
+            writeCompactValue(field.data);
+        }
+    }
+
+    void writeCompactValue(Object data) throws TibrvException
+    {
+        if (data == null)
+            writeByte('-');
+        else if (data instanceof String)
+            writeCompactText((String)data);
+        else if (data instanceof TibrvMsg)
+        {
+            writeByte('{');
+            writeCompactFields((TibrvMsg)data);
+            writeAscii(" }");
+        }
+        else if (data instanceof byte[])
+            writeBase64((byte[])data);
+        else if (!writeScalar(data))
+        {
+            if (data.getClass().isArray())
+                writeArray(data,false);
+            else
+                writeCompactText(data.toString());
+        }
+    }
+
+    // writes the string as UTF-8 with the compact escapes, null as '-'
+    void writeCompactText(String value)
+    {
+        if (value == null)
+        {
+            writeByte('-');
+            return;
+        }
+        int n = value.length();
+        for (int i=0; i<n; i++)
+        {
+            char c = value.charAt(i);
+            if (c == ' ' || c == '=' || c == '{' || c == '}' || c == '\\' ||
+                (c == '-' && i == 0))
+            {
+                writeByte('\\');
+                writeByte(c);
+            }
+            else if (c == '\n')
+                writeAscii("\\n");
+            else if (c == '\r')
+                writeAscii("\\r");
+            else if (c == '\t')
+                writeAscii("\\t");
+            else if (c < 0x20 || c == 0x7f)
+            {
+                writeAscii("\\u00");
+                writeByte(DIGITS[c >> 4]);
+                writeByte(DIGITS[c & 0xf]);
+            }
+            else if (c < 0x80)
+                writeByte(c);
+            else
+                i = writeUtf8(value,i);
+        }
+    }
+
+    // writes the string as UTF-8 without escapes, null as '-'
+    void writeText(String value)
+    {
+        if (value == null)
+        {
+            writeByte('-');
+            return;
+        }
+        int n = value.length();
+        for (int i=0; i<n; i++)
+        {
+            char c = value.charAt(i);
+            if (c < 0x80)
+                writeByte(c);
+            else
+                i = writeUtf8(value,i);
+        }
+    }
+
+    //---------------------------------------------------------------
+    // values shared by both formats
+    //---------------------------------------------------------------
+
+    // numbers, booleans and dates; returns false for anything else
+    boolean writeScalar(Object data)
+    {
+        if (data instanceof Integer || data instanceof Long ||
+            data instanceof Short   || data instanceof Byte)
+            writeLong(((Number)data).longValue());
+        else if (data instanceof Double || data instanceof Float)
+            writeDouble(((Number)data).doubleValue());
+        else if (data instanceof Boolean)
+            writeAscii(((Boolean)data).booleanValue() ? "true" : "false");
+        else if (data instanceof TibrvDate)
+            writeLong(((TibrvDate)data).getTime());
+        else
+            return false;
+        return true;
+    }
+
+    void writeArray(Object array, boolean json)
+    {
+        writeByte('[');
+        int n = java.lang.reflect.Array.getLength(array);
+        for (int i=0; i<n; i++)
+        {
+            if (i > 0)
+                writeByte(',');
+            Object element = java.lang.reflect.Array.get(array,i);
+            if (!writeScalar(element))
+            {
+                if (json)
+                    writeJsonString(String.valueOf(element));
+                else
+                    writeCompactText(String.valueOf(element));
+            }
+        }
+        writeByte(']');
+    }
+
+    void writeLong(long value)
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (value < 0)
+        {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do
+        {
+            buffer[length++] = (byte)('0'+(int)(value % 10));
+            value /= 10;
+        }
+        while (value != 0);
+        // digits were written backwards
+        for (int i=start, j=length-1; i<j; i++, j--)
+        {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+    }
+
+    void writeDouble(double value)
+    {
+        if (value == (long)value && Math.abs(value) < 1e15)
+            writeLong((long)value);
+        else if (Double.isNaN(value) || Double.isInfinite(value))
+            writeAscii(format == JSON ? "null" : String.valueOf(value));
+        else
+            writeAscii(Double.toString(value));
+    }
+
+    void writeBase64(byte[] data)
+    {
+        ensure((data.length+2)/3*4);
+        int i = 0;
+        for (; i+2 < data.length; i += 3)
+        {
+            int bits = (data[i] & 0xff) << 16 | (data[i+1] & 0xff) << 8 | (data[i+2] & 0xff);
+            buffer[length++] = BASE64[bits >>> 18];
+            buffer[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buffer[length++] = BASE64[(bits >>> 6) & 0x3f];
+            buffer[length++] = BASE64[bits & 0x3f];
+        }
+        int rest = data.length-i;
+        if (rest > 0)
+        {
+            int bits = (data[i] & 0xff) << 16 | (rest == 2 ? (data[i+1] & 0xff) << 8 : 0);
+            buffer[length++] = BASE64[bits >>> 18];
+            buffer[length++] = BASE64[(bits >>> 12) & 0x3f];
+            buffer[length++] = rest == 2 ? BASE64[(bits >>> 6) & 0x3f] : (byte)'=';
+            buffer[length++] = '=';
+        }
+    }
+
+    // writes the character at index i as UTF-8 and returns the
+    // index of its last char (surrogate pairs use two)
+    int writeUtf8(String value, int i)
+    {
+        int cp = value.codePointAt(i);
+        ensure(4);
+        if (cp < 0x800)
+        {
+            buffer[length++] = (byte)(0xc0 | (cp >> 6));
+            buffer[length++] = (byte)(0x80 | (cp & 0x3f));
+        }
+        else if (cp < 0x10000)
+        {
+            buffer[length++] = (byte)(0xe0 | (cp >> 12));
+            buffer[length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+            buffer[length++] = (byte)(0x80 | (cp & 0x3f));
+        }
+        else
+        {
+            buffer[length++] = (byte)(0xf0 | (cp >> 18));
+            buffer[length++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+            buffer[length++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+            buffer[length++] = (byte)(0x80 | (cp & 0x3f));
+            return i+1;
+        }
+        return i;
+    }
+
+    void writeAscii(String value)
+    {
+        int n = value.length();
+        ensure(n);
+        for (int i=0; i<n; i++)
+            buffer[length++] = (byte)value.charAt(i);
+    }
+
+    void writeByte(int b)
+    {
+        if (length == buffer.length)
+            ensure(1);
+        buffer[length++] = (byte)b;
+    }
+
+    void ensure(int extra)
+    {
+        if (length+extra > buffer.length)
+        {
+            byte[] bigger = new byte[Math.max(buffer.length*2,length+extra)];
+            System.arraycopy(buffer,0,bigger,0,length);
+            buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+
+/*
+ * MsgFormatterBench - compares MsgFormatter with TibrvMsg.toString()
+ *
+ * There are no parameters required to run this program.
+ * It uses the Java implementation and does not need a daemon.
+ *
+ * Two messages are formatted repeatedly: a small one with five fields
+ * of common types, and one with 100 fields.  For each message the
+ * program prints formatted messages per second for toString() (plus
+ * the Date and concatenation tibrvlisten does around it), and for
+ * MsgFormatter in JSON and compact format.
+ */
+
+import java.util.*;
+import com.tibco.tibrv.*;
+
+public class MsgFormatterBench
+{
+    static final int ROUNDS = 6;
+    static final long ROUND_NANOS = 1000000000L;
+
+    static volatile long sink;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            Tibrv.open(Tibrv.IMPL_JAVA);
+
+            TibrvMsg small = new TibrvMsg();
+            small.setSendSubject("MD.X.IBM");
+            small.update("SYMBOL","IBM");
+            small.update("PRICE",101.25);
+            small.update("SIZE",500);
+            small.update("SEQ",123456789012L);
+            small.update("VENUE","X");
+
+            TibrvMsg large = new TibrvMsg();
+            large.setSendSubject("MD.X.BOOK");
+            for (int i=0; i<100; i++)
+            {
+                switch (i % 4)
+                {
+                    case 0:  large.update("F"+i,i*1000L); break;
+                    case 1:  large.update("F"+i,i+0.5); break;
+                    case 2:  large.update("F"+i,"value-"+i); break;
+                    default: large.update("F"+i,i); break;
+                }
+            }
+
+            System.out.println("message       toString msg/s     json msg/s  compact msg/s");
+            run("5 fields",small);
+            run("100 fields",large);
+
+            Tibrv.close();
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    static void run(String name, TibrvMsg msg) throws TibrvException
+    {
+        MsgFormatter json    = new MsgFormatter(MsgFormatter.JSON);
+        MsgFormatter compact = new MsgFormatter(MsgFormatter.COMPACT);
+
+        double a = 0, b = 0, c = 0;
+        for (int round=0; round<ROUNDS; round++)
+        {
+            // first round is warm-up
+            double ra = timeToString(msg);
+            double rb = timeFormatter(json,msg);
+            double rc = timeFormatter(compact,msg);
+            if (round > 0)
+            {
+                a += ra;
+                b += rb;
+                c += rc;
+            }
+        }
+        int n = ROUNDS-1;
+        System.out.println(String.format("%-10s %16.0f %14.0f %14.0f",name,a/n,b/n,c/n));
+    }
+
+    static double timeToString(TibrvMsg msg)
+    {
+        long count = 0, length = 0;
+        long start = System.nanoTime();
+        long end;
+        do
+        {
+            for (int i=0; i<100; i++)
+            {
+                String line = (new Date()).toString()+
+                              ": subject="+msg.getSendSubject()+
+                              ", reply="+msg.getReplySubject()+
+                              ", message="+msg.toString();
+                length += line.length();
+            }
+            count += 100;
+            end = System.nanoTime();
+        }
+        while (end-start < ROUND_NANOS);
+        sink += length;
+        return count*1e9/(end-start);
+    }
+
+    static double timeFormatter(MsgFormatter formatter, TibrvMsg msg) throws TibrvException
+    {
+        long count = 0, length = 0;
+        long start = System.nanoTime();
+        long end;
+        do
+        {
+            for (int i=0; i<100; i++)
+            {
+                formatter.format(msg,System.currentTimeMillis());
+                length += formatter.length();
+            }
+            count += 100;
+            end = System.nanoTime();
+        }
+        while (end-start < ROUND_NANOS);
+        sink += length;
+        return count*1e9/(end-start);
+    }
+}
@@ -0,0 +1,180 @@
+
+/*
+ * PriorityBench - strict priority against aging and weighted fair dispatch
+ *
+ * There are no parameters required to run this program.
+ * It uses the Java implementation and the process transport and does
+ * not need a daemon.
+ *
+ * Two queues, "low" with priority 1 and "high" with priority 2, are
+ * dispatched by one thread.  Every callback costs COST_MICROS, so the
+ * thread can dispatch 1000000/COST_MICROS events per second.  For
+ * SECONDS the main thread publishes HIGH_RATE messages per second to
+ * the high queue, more than the thread can dispatch, and LOW_RATE to
+ * the low queue, then waits until both queues are drained.  Each
+ * message carries its send time.
+ *
+ *  strict    the queues are in a TibrvQueueGroup, which always serves
+ *            the high queue first
+ *  aging     the queues are in an AgingQueueGroup, which serves them
+ *            by priority raised by one per AGING_MILLIS of waiting
+ *  weighted  the queues are in a WeightedQueueGroup with weights
+ *            LOW_WEIGHT and HIGH_WEIGHT
+ *
+ * For every mode and queue the program prints the share of events
+ * dispatched while publishing, how many of the queue's messages were
+ * dispatched by then, and percentiles of the wait from send to
+ * callback over all messages.
+ */
+
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class PriorityBench implements TibrvMsgCallback
+{
+    static final long COST_MICROS = 20;
+    static final int  HIGH_RATE   = 60000;
+    static final int  LOW_RATE    = 10000;
+    static final int  SECONDS     = 2;
+    static final int  LOW_WEIGHT  = 1;
+    static final int  HIGH_WEIGHT = 3;
+    static final int  AGING_MILLIS = 20;
+
+    static final int LOW  = 0;
+    static final int HIGH = 1;
+    static final String[] NAMES = { "low", "high" };
+
+    TibrvTransport     transport;
+    AtomicLong[]       dispatched = new AtomicLong[2];
+    LatencyHistogram[] waits      = new LatencyHistogram[2];    // dispatcher thread only
+
+    public static void main(String args[])
+    {
+        try
+        {
+            Tibrv.open(Tibrv.IMPL_JAVA);
+            new PriorityBench().execute();
+            Tibrv.close();
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    void execute() throws TibrvException
+    {
+        transport = Tibrv.processTransport();
+        for (int c=LOW; c<=HIGH; c++)
+        {
+            dispatched[c] = new AtomicLong();
+            waits[c] = new LatencyHistogram();
+        }
+
+        System.out.println(String.format("%d us per event, high %d msg/s, low %d msg/s, %d seconds",
+                COST_MICROS,HIGH_RATE,LOW_RATE,SECONDS));
+        System.out.println("mode      queue  share %  done while publishing     p50 ms     p99 ms     max ms");
+        run("strict");
+        run("aging");
+        run("weighted");
+    }
+
+    void run(String mode) throws TibrvException
+    {
+        TibrvQueue[] queues = new TibrvQueue[2];
+        for (int c=LOW; c<=HIGH; c++)
+        {
+            queues[c] = new TibrvQueue();
+            queues[c].setPriority(c+1);
+            new TibrvListener(queues[c],this,transport,"bench."+NAMES[c],Integer.valueOf(c));
+            dispatched[c].set(0);
+            waits[c].reset();
+        }
+
+        TibrvDispatchable group;
+        if (mode.equals("aging"))
+        {
+            AgingQueueGroup aging = new AgingQueueGroup(AGING_MILLIS);
+            aging.add(queues[LOW]);
+            aging.add(queues[HIGH]);
+            group = aging;
+        }
+        else
+        if (mode.equals("weighted"))
+        {
+            WeightedQueueGroup weighted = new WeightedQueueGroup();
+            weighted.add(queues[LOW],LOW_WEIGHT);
+            weighted.add(queues[HIGH],HIGH_WEIGHT);
+            group = weighted;
+        }
+        else
+        {
+            TibrvQueueGroup strict = new TibrvQueueGroup();
+            strict.add(queues[LOW]);
+            strict.add(queues[HIGH]);
+            group = strict;
+        }
+        TibrvDispatcher dispatcher = new TibrvDispatcher("dispatcher",group,0.5);
+
+        // publish both classes interleaved at their rates
+        TibrvMsg[] msgs = new TibrvMsg[2];
+        for (int c=LOW; c<=HIGH; c++)
+        {
+            msgs[c] = new TibrvMsg();
+            msgs[c].setSendSubject("bench."+NAMES[c]);
+        }
+        int total = (HIGH_RATE+LOW_RATE)*SECONDS;
+        long interval = 1000000000L/(HIGH_RATE+LOW_RATE);
+        long start = System.nanoTime();
+        long[] published = new long[2];
+        for (int n=0; n<total; n++)
+        {
+            long next = start+n*interval;
+            while (System.nanoTime() < next)
+                Thread.onSpinWait();
+            // LOW_RATE of every HIGH_RATE+LOW_RATE messages are low
+            int c = (long)n*LOW_RATE/(HIGH_RATE+LOW_RATE) !=
+                    (long)(n+1)*LOW_RATE/(HIGH_RATE+LOW_RATE) ? LOW : HIGH;
+            msgs[c].update("t",System.nanoTime());
+            transport.send(msgs[c]);
+            published[c]++;
+        }
+        long[] done = { dispatched[LOW].get(), dispatched[HIGH].get() };
+
+        try
+        {
+            dispatcher.join();
+        }
+        catch (InterruptedException e)
+        {
+        }
+
+        for (int c=LOW; c<=HIGH; c++)
+        {
+            System.out.println(String.format("%-9s %-5s %8.1f %12d of %-8d %10.1f %10.1f %10.1f",
+                    mode,NAMES[c],100.0*done[c]/Math.max(1,done[LOW]+done[HIGH]),done[c],published[c],
+                    waits[c].getPercentile(50)/1e6,waits[c].getPercentile(99)/1e6,
+                    waits[c].getMax()/1e6));
+            queues[c].destroy();
+        }
+    }
+
+    public void onMsg(TibrvListener listener, TibrvMsg msg)
+    {
+        int c = ((Integer)listener.getClosure()).intValue();
+        long now = System.nanoTime();
+        try
+        {
+            waits[c].record(now-msg.getAsLong("t",0));
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+        }
+        long end = now+COST_MICROS*1000;
+        while (System.nanoTime() < end)
+            Thread.onSpinWait();
+        dispatched[c].incrementAndGet();
+    }
+}
@@ -0,0 +1,162 @@
+
+/*
+ * QueueWatchdog - samples queue backlog to detect slow consumers
+ *
+ * A daemon thread samples getCount() of each watched queue several
+ * times per reporting interval.  report() prints, per queue:
+ *
+ *   backlog     events queued at the last sample
+ *   peak        largest backlog seen during the interval
+ *   growth      change of backlog per second over the interval;
+ *               positive growth means the consumer is falling behind
+ *   drain       estimated time to empty the queue at the rate it
+ *               shrank during the interval, or the time the last
+ *               backlog actually took to drain to zero
+ *
+ * Discards are reported by the caller, which knows how they are
+ * observed (see countDiscard()).  A queue whose backlog grew over
+ * every sample of an interval is flagged as a slow consumer.
+ */
+
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class QueueWatchdog extends Thread
+{
+    static class Watch
+    {
+        final TibrvQueue queue;
+        final String     name;
+
+        volatile int  backlog     = 0;
+        volatile int  peak        = 0;
+        volatile int  growingRuns = 0;   // consecutive growing samples
+        volatile long drainedNanos = -1; // duration of the last full drain
+        volatile boolean growing  = false;
+
+        long backlogStart = 0;           // when the queue stopped being empty
+        int  reportedBacklog = 0;
+
+        Watch(TibrvQueue queue, String name)
+        {
+            this.queue = queue;
+            this.name  = name;
+        }
+    }
+
+    final Watch[] watches;
+    final long    sampleMillis;
+    final int     samplesPerReport;
+
+    final AtomicLong discardAdvisories = new AtomicLong();
+    final AtomicLong discardedEvents   = new AtomicLong();
+    long lastReport = System.nanoTime();
+
+    public QueueWatchdog(TibrvQueue[] queues, double reportInterval)
+    {
+        super("QueueWatchdog");
+        setDaemon(true);
+        watches = new Watch[queues.length];
+        for (int i=0; i<queues.length; i++)
+        {
+            String name = "queue-"+i;
+            try
+            {
+                name = queues[i].getName();
+            }
+            catch (TibrvException e)
+            {
+            }
+            watches[i] = new Watch(queues[i],name);
+        }
+        samplesPerReport = 10;
+        sampleMillis = Math.max(10,(long)(reportInterval*1000/samplesPerReport));
+    }
+
+    // Counts a limit-exceeded advisory which discarded 'events' events.
+    public void countDiscard(long events)
+    {
+        discardAdvisories.incrementAndGet();
+        discardedEvents.addAndGet(events);
+    }
+
+    public void run()
+    {
+        while (true)
+        {
+            long now = System.nanoTime();
+            for (Watch watch : watches)
+                sample(watch,now);
+            try
+            {
+                Thread.sleep(sampleMillis);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    void sample(Watch watch, long now)
+    {
+        int count;
+        try
+        {
+            count = watch.queue.getCount();
+        }
+        catch (TibrvException e)
+        {
+            return;
+        }
+
+        if (count > watch.backlog)
+            watch.growingRuns++;
+        else
+            watch.growingRuns = 0;
+        if (watch.growingRuns >= samplesPerReport)
+            watch.growing = true;
+
+        if (count > 0 && watch.backlog == 0)
+            watch.backlogStart = now;
+        else if (count == 0 && watch.backlog > 0)
+            watch.drainedNanos = now-watch.backlogStart;
+
+        watch.backlog = count;
+        if (count > watch.peak)
+            watch.peak = count;
+    }
+
+    public String report()
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9,(now-lastReport)/1e9);
+        lastReport = now;
+
+        StringBuilder out = new StringBuilder();
+        for (Watch watch : watches)
+        {
+            int backlog = watch.backlog;
+            double growth = (backlog-watch.reportedBacklog)/seconds;
+            watch.reportedBacklog = backlog;
+
+            String drain;
+            if (backlog == 0)
+                drain = watch.drainedNanos < 0 ? "-" :
+                        String.format("last %.2fs",watch.drainedNanos/1e9);
+            else if (growth < 0)
+                drain = String.format("est %.2fs",backlog/-growth);
+            else
+                drain = "never at this rate";
+
+            out.append(String.format("queue %s: backlog %d, peak %d, growth %+.1f ev/s, drain %s%s%n",
+                    watch.name,backlog,watch.peak,growth,drain,
+                    watch.growing ? " - SLOW CONSUMER" : ""));
+            watch.peak = backlog;
+            watch.growing = false;
+        }
+        out.append(String.format("discards: %d limit advisories, ~%d events%n",
+                discardAdvisories.get(),discardedEvents.get()));
+        return out.toString();
+    }
+}
@@ -0,0 +1,151 @@
+
+/*
+ * Sampler - decides which messages to print while counting all of them
+ *
+ * Every message offered is counted and its size accounted, but only
+ * a sample is selected for printing, so that a busy subscription can
+ * be watched without formatting every message.
+ *
+ *   one-in-N   each message is selected with probability 1/N and
+ *              should be printed right away
+ *   reservoir  K messages are kept per interval, uniformly chosen
+ *              from all messages of the interval (Vitter's
+ *              algorithm R); drain() returns them
+ *
+ * offer() decides before the caller formats anything.  A message is
+ * only copied when it enters the reservoir.
+ *
+ * offer() may be called from several dispatcher threads.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class Sampler
+{
+    final int oneIn;            // 0 when sampling into the reservoir
+    final TibrvMsg[] reservoir; // null when sampling one in N
+
+    final LongAdder messages = new LongAdder();
+    final LongAdder bytes    = new LongAdder();
+    final LongAdder selected = new LongAdder();
+
+    long seenInInterval = 0;    // guarded by reservoir
+    int  filled         = 0;    // guarded by reservoir
+
+    long reportedMessages = 0;
+    long reportedBytes    = 0;
+    long reportedSelected = 0;
+    long lastReport       = System.nanoTime();
+
+    Sampler(int oneIn, int reservoirSize)
+    {
+        this.oneIn = oneIn;
+        this.reservoir = reservoirSize > 0 ? new TibrvMsg[reservoirSize] : null;
+    }
+
+    public static Sampler oneIn(int n)
+    {
+        return new Sampler(n,0);
+    }
+
+    public static Sampler reservoir(int size)
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("Reservoir size must be at least 1: "+size);
+        return new Sampler(0,size);
+    }
+
+    // parses "1/N" or "N"
+    public static int parseRate(String rate)
+    {
+        if (rate.startsWith("1/"))
+            rate = rate.substring(2);
+        int n = Integer.parseInt(rate);
+        if (n < 1)
+            throw new NumberFormatException("Sample rate must be 1/N with N >= 1: "+rate);
+        return n;
+    }
+
+    // Counts the message and returns true if it should be printed now.
+    public boolean offer(TibrvMsg msg, int size)
+    {
+        messages.increment();
+        bytes.add(size);
+
+        if (reservoir == null)
+        {
+            if (oneIn > 1 && ThreadLocalRandom.current().nextInt(oneIn) != 0)
+                return false;
+            selected.increment();
+            return true;
+        }
+
+        synchronized (reservoir)
+        {
+            long seen = ++seenInInterval;
+            int slot;
+            if (filled < reservoir.length)
+                slot = filled++;
+            else
+            {
+                long r = ThreadLocalRandom.current().nextLong(seen);
+                if (r >= reservoir.length)
+                    return false;
+                slot = (int)r;
+            }
+            try
+            {
+                TibrvMsg copy = new TibrvMsg(msg);
+                // the evicted copy is ours, free it for the native implementation
+                if (reservoir[slot] != null)
+                    reservoir[slot].dispose();
+                reservoir[slot] = copy;
+            }
+            catch (TibrvException e)
+            {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Returns the reservoir of the interval and starts a new one.
+    public List<TibrvMsg> drain()
+    {
+        if (reservoir == null)
+            return Collections.emptyList();
+        synchronized (reservoir)
+        {
+            List<TibrvMsg> result = new ArrayList<TibrvMsg>(filled);
+            for (int i=0; i<filled; i++)
+            {
+                result.add(reservoir[i]);
+                reservoir[i] = null;
+            }
+            selected.add(filled);
+            filled = 0;
+            seenInInterval = 0;
+            return result;
+        }
+    }
+
+    public String report()
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9,(now-lastReport)/1e9);
+        long m = messages.sum(), b = bytes.sum(), s = selected.sum();
+
+        String out = String.format("--- sampled %d of %d msgs (%.1f msg/s, %.1f KB/s), total %d msgs %d bytes%n",
+                s-reportedSelected,m-reportedMessages,(m-reportedMessages)/seconds,
+                (b-reportedBytes)/seconds/1024,m,b);
+
+        reportedMessages = m;
+        reportedBytes    = b;
+        reportedSelected = s;
+        lastReport       = now;
+        return out;
+    }
+}
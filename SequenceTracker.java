@@ -0,0 +1,187 @@
+
+/*
+ * SequenceTracker - per-subject sequence gap, duplicate and reorder detection
+ *
+ * Each subject keeps the highest sequence number seen and a 64 bit
+ * window of which of the 64 numbers up to and including the highest
+ * have arrived.  A number above the highest opens a gap of the numbers
+ * skipped; a number inside the window either fills a gap (out of
+ * order) or was already seen (duplicate).  A number below the first
+ * one seen for the subject, or more than the window below the
+ * highest, is counted as late and otherwise ignored.  The publisher
+ * is taken to have restarted its sequence when such a low number is
+ * below the window size, such as 1 after a restart, or when
+ * RESTART_RUN low numbers arrive in a row; tracking then starts over
+ * from that number.
+ *
+ * State per subject is a handful of longs.  At most maxSubjects
+ * subjects are tracked; the least recently updated subject is dropped
+ * to make room for a new one, so memory stays bounded however many
+ * subjects a wildcard subscription brings in.
+ *
+ * All methods are synchronized.
+ */
+
+import java.util.*;
+
+public class SequenceTracker
+{
+    static final int WINDOW      = 64;
+    static final int RESTART_RUN = 3;   // low numbers in a row taken as a restart
+
+    static class State
+    {
+        long start;         // first number since tracking (re)started
+        long highest;
+        long window;        // bit i set: highest-i has arrived
+        long received;
+        long missing;       // skipped and not (yet) filled
+        long gaps;          // number of times a gap opened
+        long largestGap;
+        long duplicates;
+        long outOfOrder;
+        long late;          // below start or the window, ignored
+        long resets;
+        int  lowRun;        // late numbers in a row far below highest
+    }
+
+    final String field;
+    final LinkedHashMap<String,State> states;
+
+    long noSequence = 0;    // messages without a usable sequence field
+    long evicted    = 0;
+
+    public SequenceTracker(String field, final int maxSubjects)
+    {
+        this.field = field;
+        this.states = new LinkedHashMap<String,State>(1024,0.75f,true) {
+            protected boolean removeEldestEntry(Map.Entry<String,State> eldest)
+            {
+                if (size() <= maxSubjects)
+                    return false;
+                evicted++;
+                return true;
+            }
+        };
+    }
+
+    public synchronized void record(String subject, long seq)
+    {
+        State state = states.get(subject);
+        if (state == null)
+        {
+            state = new State();
+            state.received = 1;
+            restart(state,seq);
+            states.put(subject,state);
+            return;
+        }
+        state.received++;
+
+        long offset = state.highest-seq;
+        if (offset >= WINDOW)
+        {
+            if (seq < WINDOW || ++state.lowRun >= RESTART_RUN)
+            {
+                state.resets++;
+                restart(state,seq);
+            }
+            else
+                state.late++;
+            return;
+        }
+        state.lowRun = 0;
+
+        if (seq > state.highest)
+        {
+            long skipped = seq-state.highest-1;
+            if (skipped > 0)
+            {
+                state.missing += skipped;
+                state.gaps++;
+                if (skipped > state.largestGap)
+                    state.largestGap = skipped;
+            }
+            long shift = seq-state.highest;
+            state.window = (shift >= WINDOW) ? 1 : (state.window << shift) | 1;
+            state.highest = seq;
+        }
+        else if (seq < state.start)
+            state.late++;       // sent before we started listening
+        else if ((state.window & (1L << offset)) != 0)
+            state.duplicates++;
+        else
+        {
+            state.window |= 1L << offset;
+            state.outOfOrder++;
+            if (state.missing > 0)
+                state.missing--;
+        }
+    }
+
+    // starts tracking over from seq, keeping the counters
+    void restart(State state, long seq)
+    {
+        state.start   = seq;
+        state.highest = seq;
+        state.window  = 1;
+        state.lowRun  = 0;
+    }
+
+    public synchronized void recordMissingField()
+    {
+        noSequence++;
+    }
+
+    public String getField()
+    {
+        return field;
+    }
+
+    // Returns totals and the subjects with the most missing messages.
+    public synchronized String report(int top)
+    {
+        long received = 0, missing = 0, gaps = 0, dups = 0, ooo = 0, late = 0, resets = 0;
+        PriorityQueue<Map.Entry<String,State>> worst = new PriorityQueue<Map.Entry<String,State>>(top+1,
+                new Comparator<Map.Entry<String,State>>() {
+                    public int compare(Map.Entry<String,State> a, Map.Entry<String,State> b)
+                    {
+                        return Long.compare(a.getValue().missing,b.getValue().missing);
+                    }
+                });
+
+        for (Map.Entry<String,State> entry : states.entrySet())
+        {
+            State state = entry.getValue();
+            received += state.received;
+            missing  += state.missing;
+            gaps     += state.gaps;
+            dups     += state.duplicates;
+            ooo      += state.outOfOrder;
+            late     += state.late;
+            resets   += state.resets;
+            if (state.missing > 0 || state.duplicates > 0)
+            {
+                worst.add(entry);
+                if (worst.size() > top)
+                    worst.poll();
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("--- sequence %s: %d subjects, %d msgs, %d missing in %d gaps, "+
+                                 "%d duplicates, %d out of order, %d late, %d resets, %d without %s, %d subjects evicted%n",
+                field,states.size(),received,missing,gaps,dups,ooo,late,resets,noSequence,field,evicted));
+
+        List<Map.Entry<String,State>> list = new ArrayList<Map.Entry<String,State>>(worst);
+        Collections.sort(list,Collections.reverseOrder(worst.comparator()));
+        for (Map.Entry<String,State> entry : list)
+        {
+            State state = entry.getValue();
+            out.append(String.format("  %s: highest %d, missing %d in %d gaps (largest %d), %d duplicates, %d out of order%n",
+                    entry.getKey(),state.highest,state.missing,state.gaps,state.largestGap,
+                    state.duplicates,state.outOfOrder));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,145 @@
+
+/*
+ * SpaceSaving - fixed-memory top-N heavy hitter sketch
+ *
+ * Implements the Space-Saving algorithm (Metwally, Agrawal, El Abbadi).
+ * At most 'capacity' keys are tracked.  When a key that is not tracked
+ * arrives and the sketch is full, the key with the smallest count is
+ * evicted and the new key takes over its count plus one; the inherited
+ * count is remembered as the error bound of the new key.
+ *
+ * Every key whose true count exceeds total/capacity is guaranteed to
+ * be tracked, and a tracked count overestimates the true count by at
+ * most its error.  Memory stays the same no matter how many distinct
+ * keys are offered.
+ *
+ * Each counter also accumulates a weight (used for bytes), which is
+ * reset when the counter is taken over by another key.
+ *
+ * The class is not synchronized.
+ */
+
+import java.util.*;
+
+public class SpaceSaving<K>
+{
+    public static class Counter<K>
+    {
+        K    key;
+        long count;
+        long error;
+        long weight;
+        int  index;             // position in the heap
+
+        public K    getKey()    { return key; }
+        public long getCount()  { return count; }
+        public long getError()  { return error; }
+        public long getWeight() { return weight; }
+    }
+
+    final int capacity;
+    final HashMap<K,Counter<K>> counters;
+    final Counter<K>[] heap;    // min-heap on count
+    int size = 0;
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    public SpaceSaving(int capacity)
+    {
+        this.capacity = capacity;
+        this.counters = new HashMap<K,Counter<K>>(capacity*2);
+        this.heap = (Counter<K>[])new Counter[capacity];
+    }
+
+    public void offer(K key, long weight)
+    {
+        Counter<K> counter = counters.get(key);
+        if (counter == null)
+        {
+            if (size < capacity)
+            {
+                // a new count of one belongs at the top of the heap
+                counter = new Counter<K>();
+                counter.key = key;
+                counter.count = 1;
+                counter.weight = weight;
+                counters.put(key,counter);
+                heap[size] = counter;
+                siftUp(size++);
+                return;
+            }
+            // take over the smallest counter
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.error = counter.count;
+            counter.weight = 0;
+            counter.key = key;
+            counters.put(key,counter);
+        }
+        counter.count++;
+        counter.weight += weight;
+        siftDown(counter.index);
+    }
+
+    // returns up to n counters with the highest counts, highest first
+    public List<Counter<K>> top(int n)
+    {
+        List<Counter<K>> result = new ArrayList<Counter<K>>(size);
+        for (int i=0; i<size; i++)
+            result.add(heap[i]);
+        Collections.sort(result,new Comparator<Counter<K>>() {
+            public int compare(Counter<K> a, Counter<K> b)
+            {
+                return Long.compare(b.count,a.count);
+            }
+        });
+        return result.size() > n ? result.subList(0,n) : result;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        counters.clear();
+        Arrays.fill(heap,null);
+        size = 0;
+    }
+
+    void siftUp(int i)
+    {
+        Counter<K> counter = heap[i];
+        while (i > 0)
+        {
+            int parent = (i-1)/2;
+            if (heap[parent].count <= counter.count)
+                break;
+            heap[i] = heap[parent];
+            heap[i].index = i;
+            i = parent;
+        }
+        heap[i] = counter;
+        counter.index = i;
+    }
+
+    void siftDown(int i)
+    {
+        Counter<K> counter = heap[i];
+        while (true)
+        {
+            int child = 2*i+1;
+            if (child >= size)
+                break;
+            if (child+1 < size && heap[child+1].count < heap[child].count)
+                child++;
+            if (heap[child].count >= counter.count)
+                break;
+            heap[i] = heap[child];
+            heap[i].index = i;
+            i = child;
+        }
+        heap[i] = counter;
+        counter.index = i;
+    }
+}
@@ -0,0 +1,96 @@
+
+/*
+ * SubjectStats - per-subject traffic statistics in fixed memory
+ *
+ * Tracks message and byte counts per subject with a SpaceSaving
+ * sketch, so that memory stays bounded however many distinct subjects
+ * arrive, and a power-of-two histogram of message sizes.
+ *
+ * Counts are kept per reporting interval: report() prints the hottest
+ * subjects of the interval that just ended together with their rates,
+ * then starts a new interval.  Totals since start are kept as well.
+ *
+ * record() and report() may be called from different threads.
+ */
+
+import java.util.*;
+
+public class SubjectStats
+{
+    static final int SIZE_BUCKETS = 33;
+
+    final int topN;
+    final SpaceSaving<String> sketch;
+
+    final long[] sizes = new long[SIZE_BUCKETS];    // bucket i holds sizes < 2^i
+
+    long intervalMessages = 0;
+    long intervalBytes    = 0;
+    long totalMessages    = 0;
+    long totalBytes       = 0;
+    long intervalStart    = System.nanoTime();
+
+    public SubjectStats(int topN)
+    {
+        this.topN = topN;
+        // the sketch must be much larger than N for the
+        // top N counts to be accurate on skewed traffic
+        this.sketch = new SpaceSaving<String>(Math.max(64,topN*50));
+    }
+
+    public synchronized void record(String subject, int bytes)
+    {
+        sketch.offer(subject,bytes);
+        sizes[bytes <= 0 ? 0 : 32-Integer.numberOfLeadingZeros(bytes)]++;
+        intervalMessages++;
+        intervalBytes += bytes;
+    }
+
+    // Returns the summary of the current interval and starts a new one.
+    public synchronized String report()
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9,(now-intervalStart)/1e9);
+        totalMessages += intervalMessages;
+        totalBytes    += intervalBytes;
+
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("--- %s: %d msgs (%.1f msg/s, %.1f KB/s), total %d msgs %d bytes%n",
+                new Date(),intervalMessages,intervalMessages/seconds,
+                intervalBytes/seconds/1024,totalMessages,totalBytes));
+
+        List<SpaceSaving.Counter<String>> top = sketch.top(topN);
+        if (!top.isEmpty())
+        {
+            out.append(String.format("%10s %10s %10s %8s  %s%n",
+                    "msg/s","KB/s","avg bytes","+/-msgs","subject"));
+            for (SpaceSaving.Counter<String> counter : top)
+            {
+                out.append(String.format("%10.1f %10.1f %10d %8d  %s%n",
+                        counter.getCount()/seconds,
+                        counter.getWeight()/seconds/1024,
+                        counter.getWeight()/Math.max(1,counter.getCount()-counter.getError()),
+                        counter.getError(),
+                        counter.getKey()));
+            }
+        }
+
+        if (intervalMessages > 0)
+        {
+            out.append("message sizes:");
+            for (int i=0; i<SIZE_BUCKETS; i++)
+            {
+                if (sizes[i] > 0)
+                    out.append(" <").append(1L<<i).append("B:").append(sizes[i]);
+            }
+            out.append(String.format("%n"));
+        }
+
+        sketch.clear();
+        Arrays.fill(sizes,0);
+        intervalMessages = 0;
+        intervalBytes    = 0;
+        intervalStart    = now;
+        return out.toString();
+    }
+}
@@ -0,0 +1,233 @@
+
+/*
+ * SubjectTrie - in-process subject router with Rendezvous wildcard semantics
+ *
+ * Patterns are registered token by token into a trie.  The usual
+ * Rendezvous rules apply:
+ *
+ *   '*'  matches exactly one element of the subject
+ *   '>'  matches one or more trailing elements, and must be
+ *        the last element of the pattern
+ *
+ * match() returns every handler whose pattern matches a concrete
+ * subject.  Results are cached per concrete subject, so the trie walk
+ * is only paid the first time a subject is seen.  Any change to the
+ * set of registered patterns invalidates the cache.
+ *
+ * The intended use is to create a few broad TibrvListeners (see
+ * coveringSubjects()) and fan their messages out to many in-process
+ * handlers, instead of creating one TibrvListener per subscription.
+ *
+ * The class is safe to use from several dispatcher threads: lookups
+ * of cached subjects do not lock, everything else is synchronized.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SubjectTrie<H>
+{
+    static final int DEFAULT_CACHE_SIZE = 65536;
+
+    static class Node<H>
+    {
+        Map<String,Node<H>> children = null;    // literal elements
+        Node<H>             any      = null;    // '*'
+        List<H>             tail     = null;    // handlers of '>' at this level
+        List<H>             handlers = null;    // patterns ending here
+    }
+
+    final Node<H> root = new Node<H>();
+    final int     cacheSize;
+    final ConcurrentHashMap<String,List<H>> cache =
+            new ConcurrentHashMap<String,List<H>>();
+
+    int patternCount = 0;
+
+    public SubjectTrie()
+    {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    // cacheSize of 0 disables caching of match results
+    public SubjectTrie(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+    public synchronized void add(String pattern, H handler)
+    {
+        String[] tokens = split(pattern);
+        Node<H> node = root;
+        for (int i=0; i<tokens.length; i++)
+        {
+            String token = tokens[i];
+            if (token.equals(">"))
+            {
+                if (i != tokens.length-1)
+                    throw new IllegalArgumentException(
+                            "'>' must be the last element: "+pattern);
+                if (node.tail == null)
+                    node.tail = new ArrayList<H>(2);
+                node.tail.add(handler);
+                patternCount++;
+                cache.clear();
+                return;
+            }
+            node = child(node,token);
+        }
+        if (node.handlers == null)
+            node.handlers = new ArrayList<H>(2);
+        node.handlers.add(handler);
+        patternCount++;
+        cache.clear();
+    }
+
+    public synchronized boolean remove(String pattern, H handler)
+    {
+        String[] tokens = split(pattern);
+        Node<H> node = root;
+        for (int i=0; i<tokens.length && node != null; i++)
+        {
+            String token = tokens[i];
+            if (token.equals(">"))
+                return removeFrom(node.tail,handler);
+            if (token.equals("*"))
+                node = node.any;
+            else
+                node = (node.children == null) ? null : node.children.get(token);
+        }
+        return node != null && removeFrom(node.handlers,handler);
+    }
+
+    // Returns handlers matching the concrete subject, never null.
+    // The returned list must not be modified.
+    public List<H> match(String subject)
+    {
+        List<H> result = cache.get(subject);
+        if (result != null)
+            return result;
+        synchronized (this)
+        {
+            result = cache.get(subject);
+            if (result != null)
+                return result;
+
+            String[] tokens = split(subject);
+            ArrayList<H> found = new ArrayList<H>();
+            collect(root,tokens,0,found);
+            found.trimToSize();
+            result = found.isEmpty() ? Collections.<H>emptyList()
+                                     : Collections.unmodifiableList(found);
+
+            if (cacheSize > 0)
+            {
+                // Subjects such as inboxes are effectively unbounded,
+                // so start over rather than grow the cache forever.
+                if (cache.size() >= cacheSize)
+                    cache.clear();
+                cache.put(subject,result);
+            }
+            return result;
+        }
+    }
+
+    public synchronized int size()
+    {
+        return patternCount;
+    }
+
+    public int cachedSubjects()
+    {
+        return cache.size();
+    }
+
+    // Returns the smallest set of listener subjects this class
+    // knows how to compute which together cover every pattern:
+    // one "first.>" per distinct first element, single element
+    // patterns as they are, or just ">" when a pattern starts
+    // with a wildcard.
+    public static Set<String> coveringSubjects(Collection<String> patterns)
+    {
+        Set<String> result = new TreeSet<String>();
+        for (String pattern : patterns)
+        {
+            String[] tokens = split(pattern);
+            if (tokens[0].equals("*") || tokens[0].equals(">"))
+            {
+                result.clear();
+                result.add(">");
+                return result;
+            }
+            if (tokens.length == 1)
+                result.add(pattern);
+            else
+                result.add(tokens[0]+".>");
+        }
+        return result;
+    }
+
+    static String[] split(String subject)
+    {
+        if (subject == null || subject.length() == 0)
+            throw new IllegalArgumentException("Empty subject");
+        String[] tokens = subject.split("\\.",-1);
+        for (int i=0; i<tokens.length; i++)
+        {
+            if (tokens[i].length() == 0)
+                throw new IllegalArgumentException("Empty element in subject: "+subject);
+        }
+        return tokens;
+    }
+
+    Node<H> child(Node<H> node, String token)
+    {
+        if (token.equals("*"))
+        {
+            if (node.any == null)
+                node.any = new Node<H>();
+            return node.any;
+        }
+        if (node.children == null)
+            node.children = new HashMap<String,Node<H>>();
+        Node<H> next = node.children.get(token);
+        if (next == null)
+        {
+            next = new Node<H>();
+            node.children.put(token,next);
+        }
+        return next;
+    }
+
+    void collect(Node<H> node, String[] tokens, int index, List<H> found)
+    {
+        if (index == tokens.length)
+        {
+            if (node.handlers != null)
+                found.addAll(node.handlers);
+            return;
+        }
+
+        // '>' needs at least one remaining element, which we have
+        if (node.tail != null)
+            found.addAll(node.tail);
+
+        if (node.children != null)
+        {
+            Node<H> next = node.children.get(tokens[index]);
+            if (next != null)
+                collect(next,tokens,index+1,found);
+        }
+        if (node.any != null)
+            collect(node.any,tokens,index+1,found);
+    }
+
+    boolean removeFrom(List<H> list, H handler)
+    {
+        if (list == null || !list.remove(handler))
+            return false;
+        patternCount--;
+        cache.clear();
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+
+/*
+ * SubjectTrieBench - measures SubjectTrie match cost against handler count
+ *
+ * There are no parameters required to run this program.
+ * It does not use Rendezvous at all.
+ *
+ * For each handler count the program registers that many patterns
+ * shaped like market data subscriptions (MD.<venue>.<symbol>, with
+ * some '*' and '>' wildcards mixed in) and then matches a fixed set
+ * of concrete subjects three ways:
+ *
+ *   scan      - test every pattern in turn, which is roughly what the
+ *               daemon and client library face with one listener each
+ *   trie      - SubjectTrie walk with the match cache disabled
+ *   cached    - SubjectTrie with the per-subject match cache
+ *
+ * Results are printed as nanoseconds per match.
+ *
+ * Examples:
+ *
+ *  java SubjectTrieBench
+ *  java SubjectTrieBench 1000 100000
+ */
+
+import java.util.*;
+
+public class SubjectTrieBench
+{
+    static final int VENUES   = 16;
+    static final int SUBJECTS = 4096;     // distinct concrete subjects matched
+    static final int ROUNDS   = 5;
+
+    static volatile long sink;            // defeats dead code elimination
+
+    public static void main(String args[])
+    {
+        int[] counts = { 100, 1000, 10000, 100000 };
+        if (args.length > 0)
+        {
+            counts = new int[args.length];
+            for (int i=0; i<args.length; i++)
+                counts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("handlers    scan ns/match    trie ns/match  cached ns/match");
+        for (int count : counts)
+            run(count);
+    }
+
+    static void run(int count)
+    {
+        Random random = new Random(count);
+
+        List<String> patterns = new ArrayList<String>(count);
+        for (int i=0; i<count; i++)
+        {
+            String venue = "V"+random.nextInt(VENUES);
+            int shape = random.nextInt(100);
+            if (shape < 2)
+                patterns.add("MD."+venue+".>");
+            else if (shape < 4)
+                patterns.add("MD.*.S"+random.nextInt(count));
+            else
+                patterns.add("MD."+venue+".S"+i);
+        }
+
+        String[] subjects = new String[SUBJECTS];
+        for (int i=0; i<SUBJECTS; i++)
+            subjects[i] = "MD.V"+random.nextInt(VENUES)+".S"+random.nextInt(count);
+
+        SubjectTrie<Integer> trie   = new SubjectTrie<Integer>(0);
+        SubjectTrie<Integer> cached = new SubjectTrie<Integer>();
+        for (int i=0; i<count; i++)
+        {
+            trie.add(patterns.get(i),i);
+            cached.add(patterns.get(i),i);
+        }
+
+        // the scan gets fewer lookups, it is orders of magnitude slower
+        int scanLookups = Math.max(200,20000000/count);
+        int trieLookups = 2000000;
+
+        double scan = 0, walk = 0, hit = 0;
+        for (int round=0; round<ROUNDS; round++)
+        {
+            // first round is warm-up
+            double s = timeScan(patterns,subjects,scanLookups);
+            double w = timeTrie(trie,subjects,trieLookups);
+            double h = timeTrie(cached,subjects,trieLookups);
+            if (round > 0)
+            {
+                scan += s;
+                walk += w;
+                hit  += h;
+            }
+        }
+        int n = ROUNDS-1;
+        System.out.println(String.format("%8d %16.1f %16.1f %16.1f",
+                count,scan/n,walk/n,hit/n));
+    }
+
+    static double timeScan(List<String> patterns, String[] subjects, int lookups)
+    {
+        String[][] compiled = new String[patterns.size()][];
+        for (int i=0; i<compiled.length; i++)
+            compiled[i] = patterns.get(i).split("\\.");
+
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int i=0; i<lookups; i++)
+        {
+            String[] tokens = subjects[i % subjects.length].split("\\.");
+            for (String[] pattern : compiled)
+            {
+                if (matches(pattern,tokens))
+                    matches++;
+            }
+        }
+        long elapsed = System.nanoTime()-start;
+        sink += matches;
+        return (double)elapsed/lookups;
+    }
+
+    static double timeTrie(SubjectTrie<Integer> trie, String[] subjects, int lookups)
+    {
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int i=0; i<lookups; i++)
+            matches += trie.match(subjects[i % subjects.length]).size();
+        long elapsed = System.nanoTime()-start;
+        sink += matches;
+        return (double)elapsed/lookups;
+    }
+
+    static boolean matches(String[] pattern, String[] tokens)
+    {
+        for (int i=0; i<pattern.length; i++)
+        {
+            if (pattern[i].equals(">"))
+                return tokens.length > i;
+            if (i >= tokens.length)
+                return false;
+            if (!pattern[i].equals("*") && !pattern[i].equals(tokens[i]))
+                return false;
+        }
+        return pattern.length == tokens.length;
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.List;
+import com.tibco.tibrv.Tibrv;
+import com.tibco.tibrv.TibrvException;
+import com.tibco.tibrv.TibrvListener;
+import com.tibco.tibrv.TibrvMsg;
+import com.tibco.tibrv.TibrvMsgCallback;
+import com.tibco.tibrv.TibrvQueue;
+import com.tibco.tibrv.TibrvRvdTransport;
+import com.tibco.tibrv.TibrvTimer;
+import com.tibco.tibrv.TibrvTransport;
+
+/**
+ * Listens on SOME.SUBJECT and prints every message.
+ *
+ * <pre>
+ * java TibcoListener [-wait block|spin|yield|park] [-zerogc] [-bench]
+ *                    [-gccheck [max-bytes-per-msg]]
+ *                    [-batch max-msgs [-batch-wait us]] [-batchbench]
+ *                    [-arbitrate seq-field [-service-b service]
+ *                     [-network-b network] [-daemon-b daemon]]
+ * </pre>
+ *
+ * By default the queue is dispatched with blocking dispatch() calls.
+ * With -wait the queue is polled instead, and the given
+ * {@link WaitStrategy} decides what to do while it is empty, trading a
+ * core for lower wake-up latency.
+ *
+ * -bench compares the wake-up latency of all strategies on the
+ * in-process transport, no daemon is needed.
+ *
+ * -zerogc prints with a {@link GarbageFreePrinter}: the same timestamp,
+ * subject and reply, but the fields in the compact format of
+ * {@link MsgFormatter} instead of msg.toString(), a cached timestamp,
+ * one reused buffer and a flush every 10 ms instead of per message.
+ * The printer is closed on exit, so the last lines are not lost.
+ *
+ * -gccheck measures the bytes allocated per message by both callbacks
+ * with the thread allocation counters of ThreadMXBean. It needs no
+ * daemon either. It exits with status 1 if the garbage-free callback
+ * allocates more than the given bytes per message or, without a limit,
+ * not less than the plain callback. The printer is not free of garbage:
+ * getFieldByIndex() creates a TibrvMsgField for every field, and the
+ * library may create the field's data object as well, so what is left
+ * grows with the number of fields and depends on the library. No
+ * default limit is given for that reason; measure with the library
+ * you deploy to choose one.
+ *
+ * -batch dispatches through a {@link BatchDispatcher}, which hands up to
+ * max-msgs messages, or what arrives within -batch-wait microseconds
+ * (default 100), to {@link #onMsgs(List)} in one call.
+ *
+ * -batchbench shows what batching buys a consumer with a fixed cost per
+ * call (think of a database commit): throughput and added latency for
+ * several batch sizes on the in-process transport.
+ *
+ * -arbitrate listens on a second transport as well (leg B, service 7501
+ * unless given) and passes only the first copy of each value of the
+ * sequence field on, see {@link FeedArbiter}. Which leg won, the lag of
+ * the slower copy and losses per leg are printed every 5 seconds.
+ */
+public class TibcoListener implements TibrvMsgCallback, MsgBatchCallback
+{
+
+	static final String[] WAITS = { "block", "spin", "yield", "park" };
+
+	static final String BENCH_SUBJECT = "BENCH.LATENCY";
+	static final int BENCH_MESSAGES = 20000;
+	static final long BENCH_PAUSE_NANOS = 100000;
+
+	static final int GC_CHECK_WARMUP = 200000;
+	static final int GC_CHECK_MESSAGES = 1000000;
+
+	static final int[] BATCH_SIZES = { 1, 8, 64, 512 };
+	static final int BATCH_BENCH_MESSAGES = 100000;
+	static final long BATCH_BENCH_PAUSE_NANOS = 20000;
+	static final long BATCH_COST_NANOS = 50000;
+	static final long MESSAGE_COST_NANOS = 2000;
+
+	static volatile boolean running = true;
+
+	public static void main(String[] args) throws TibrvException
+	{
+
+		String service = "7500";
+		String network = "loopback";
+		String daemon = "tcp:9025";
+		String subject = "SOME.SUBJECT";
+
+		String wait = "block";
+		boolean bench = false;
+		boolean zeroGc = false;
+		boolean gcCheck = false;
+		long gcLimit = -1;
+		int batch = 0;
+		long batchWait = 100;
+		boolean batchBench = false;
+		String arbitrate = null;
+		String serviceB = "7501";
+		String networkB = network;
+		String daemonB = daemon;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-wait") && i + 1 < args.length) {
+				wait = args[++i];
+			} else if (args[i].equals("-bench")) {
+				bench = true;
+			} else if (args[i].equals("-batch") && i + 1 < args.length) {
+				batch = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-batch-wait") && i + 1 < args.length) {
+				batchWait = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-arbitrate") && i + 1 < args.length) {
+				arbitrate = args[++i];
+			} else if (args[i].equals("-service-b") && i + 1 < args.length) {
+				serviceB = args[++i];
+			} else if (args[i].equals("-network-b") && i + 1 < args.length) {
+				networkB = args[++i];
+			} else if (args[i].equals("-daemon-b") && i + 1 < args.length) {
+				daemonB = args[++i];
+			} else if (args[i].equals("-batchbench")) {
+				batchBench = true;
+			} else if (args[i].equals("-zerogc")) {
+				zeroGc = true;
+			} else if (args[i].equals("-gccheck")) {
+				gcCheck = true;
+				if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+					gcLimit = Long.parseLong(args[++i]);
+				}
+			} else {
+				System.err.println("Usage: java TibcoListener [-wait block|spin|yield|park] [-zerogc] [-bench]");
+				System.err.println("                          [-gccheck [max-bytes-per-msg]]");
+				System.err.println("                          [-batch max-msgs [-batch-wait us]] [-batchbench]");
+				System.err.println("                          [-arbitrate seq-field [-service-b service]");
+				System.err.println("                           [-network-b network] [-daemon-b daemon]]");
+				System.exit(-1);
+			}
+		}
+
+		if (bench) {
+			bench();
+			return;
+		}
+		if (gcCheck) {
+			System.exit(gcCheck(gcLimit) ? 0 : 1);
+		}
+		if (batchBench) {
+			batchBench();
+			return;
+		}
+
+		Tibrv.open(Tibrv.IMPL_NATIVE);
+		TibrvRvdTransport transport = new TibrvRvdTransport(service, network, daemon);
+
+		if (arbitrate != null) {
+			TibrvRvdTransport transportB = new TibrvRvdTransport(serviceB, networkB, daemonB);
+			FeedArbiter arbiter = new FeedArbiter(arbitrate, new TibcoListener());
+			new TibrvListener(Tibrv.defaultQueue(), arbiter, transport, subject, FeedArbiter.LEG_A);
+			new TibrvListener(Tibrv.defaultQueue(), arbiter, transportB, subject, FeedArbiter.LEG_B);
+			new TibrvTimer(Tibrv.defaultQueue(), arbiter, 5.0, null);
+			dispatch(Tibrv.defaultQueue(), wait);
+			return;
+		}
+
+		if (batch > 0) {
+			BatchDispatcher batchDispatcher = new BatchDispatcher(Tibrv.defaultQueue(), new TibcoListener(), batch, batchWait);
+			new TibrvListener(Tibrv.defaultQueue(), batchDispatcher, transport, subject, null);
+			batchDispatcher.run();
+			return;
+		}
+
+		TibrvMsgCallback callback = new TibcoListener();
+		if (zeroGc) {
+			final GarbageFreePrinter printer = new GarbageFreePrinter(new FileOutputStream(FileDescriptor.out), 10);
+			// write out the last flush interval when we are stopped
+			Runtime.getRuntime().addShutdownHook(new Thread("GarbageFreePrinter-close") {
+				public void run()
+				{
+					printer.close();
+				}
+			});
+			callback = printer;
+		}
+		new TibrvListener(Tibrv.defaultQueue(), callback, transport, subject, null);
+
+		dispatch(Tibrv.defaultQueue(), wait);
+
+	}
+
+	/**
+	 * Dispatches the queue until {@link #running} is cleared, blocking or
+	 * polling with the named wait strategy.
+	 */
+	static void dispatch(TibrvQueue queue, String wait) throws TibrvException
+	{
+		WaitStrategy strategy = wait.equals("block") ? null : WaitStrategy.forName(wait);
+		int emptyPolls = 0;
+		while (running) {
+			try {
+				if (strategy == null) {
+					// wake up now and then to notice when we should stop
+					queue.timedDispatch(0.1);
+				} else if (queue.poll()) {
+					emptyPolls = 0;
+				} else {
+					if (emptyPolls < Integer.MAX_VALUE) {
+						emptyPolls++;
+					}
+					strategy.idle(emptyPolls);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void onMsg(TibrvListener listener, TibrvMsg msg)
+	{
+
+		System.out.println((new Date()).toString() + ": subject=" + msg.getSendSubject() + ", reply=" + msg.getReplySubject() + ", message=" + msg.toString());
+
+		System.out.flush();
+
+	}
+
+	public void onMsgs(List<TibrvMsg> msgs)
+	{
+
+		for (TibrvMsg msg : msgs) {
+			System.out.println((new Date()).toString() + ": subject=" + msg.getSendSubject() + ", reply=" + msg.getReplySubject() + ", message=" + msg.toString());
+		}
+
+		System.out.flush();
+
+	}
+
+	/**
+	 * Sends paced messages carrying System.nanoTime() on the in-process
+	 * transport, and records how long each takes to reach the callback
+	 * with every wait strategy.
+	 */
+	static void bench() throws TibrvException
+	{
+		Tibrv.open(Tibrv.IMPL_JAVA);
+		TibrvTransport transport = Tibrv.processTransport();
+
+		System.out.println("wake-up latency over " + BENCH_MESSAGES + " messages, one every "
+				+ BENCH_PAUSE_NANOS / 1000 + " us");
+		for (final String wait : WAITS) {
+			final TibrvQueue queue = new TibrvQueue();
+			LatencyProbe probe = new LatencyProbe();
+			TibrvListener listener = new TibrvListener(queue, probe, transport, BENCH_SUBJECT, null);
+
+			running = true;
+			Thread receiver = new Thread("Receiver-" + wait) {
+				public void run()
+				{
+					try {
+						dispatch(queue, wait);
+					} catch (TibrvException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			receiver.start();
+
+			TibrvMsg msg = new TibrvMsg();
+			msg.setSendSubject(BENCH_SUBJECT);
+			for (int i = 0; i < BENCH_MESSAGES; i++) {
+				long next = System.nanoTime() + BENCH_PAUSE_NANOS;
+				msg.update("T", System.nanoTime());
+				transport.send(msg);
+				while (System.nanoTime() < next) {
+					Thread.onSpinWait();
+				}
+			}
+			while (probe.count() < BENCH_MESSAGES) {
+				Thread.yield();
+			}
+
+			running = false;
+			try {
+				receiver.join();
+			} catch (InterruptedException e) {
+			}
+			listener.destroy();
+			queue.destroy();
+
+			System.out.println(String.format("%-6s %s", wait, probe.summary()));
+		}
+
+		Tibrv.close();
+	}
+
+	/**
+	 * Feeds the same message to the plain and the garbage-free callback
+	 * and compares the bytes allocated per message on this thread.
+	 * Output goes nowhere. Returns false if the garbage-free callback
+	 * allocates more than maxBytesPerMsg or, if that is negative, not
+	 * less than the plain callback.
+	 */
+	static boolean gcCheck(long maxBytesPerMsg) throws TibrvException
+	{
+		Tibrv.open(Tibrv.IMPL_JAVA);
+
+		TibrvMsg msg = new TibrvMsg();
+		msg.setSendSubject("SOME.SUBJECT");
+		msg.update("FIELD", "ASDF");
+		msg.update("SIZE", 100);
+
+		OutputStream discard = new OutputStream() {
+			public void write(int b)
+			{
+			}
+
+			public void write(byte[] b, int off, int len)
+			{
+			}
+		};
+		PrintStream stdout = System.out;
+		System.setOut(new PrintStream(discard));
+		double plain;
+		double garbageFree;
+		try {
+			plain = allocatedPerMessage(new TibcoListener(), msg);
+			GarbageFreePrinter printer = new GarbageFreePrinter(discard, 10);
+			garbageFree = allocatedPerMessage(printer, msg);
+			printer.close();
+		} finally {
+			System.setOut(stdout);
+		}
+		Tibrv.close();
+
+		boolean passed = maxBytesPerMsg < 0 ? garbageFree < plain : garbageFree <= maxBytesPerMsg;
+		System.out.println(String.format("allocated per message: onMsg %.1f bytes, -zerogc %.1f bytes (limit %s): %s",
+				plain, garbageFree, maxBytesPerMsg < 0 ? "less than onMsg" : maxBytesPerMsg + " bytes",
+				passed ? "PASSED" : "FAILED"));
+		return passed;
+	}
+
+	static double allocatedPerMessage(TibrvMsgCallback callback, TibrvMsg msg)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (int i = 0; i < GC_CHECK_WARMUP; i++) {
+			callback.onMsg(null, msg);
+		}
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < GC_CHECK_MESSAGES; i++) {
+			callback.onMsg(null, msg);
+		}
+		long after = threads.getCurrentThreadAllocatedBytes();
+		return (double) (after - before) / GC_CHECK_MESSAGES;
+	}
+
+	/**
+	 * Sends paced messages on the in-process transport to a consumer that
+	 * pays BATCH_COST_NANOS per call plus MESSAGE_COST_NANOS per message,
+	 * and reports throughput and send-to-callback latency per batch size.
+	 */
+	static void batchBench() throws TibrvException
+	{
+		Tibrv.open(Tibrv.IMPL_JAVA);
+		TibrvTransport transport = Tibrv.processTransport();
+
+		System.out.println(BATCH_BENCH_MESSAGES + " messages offered at " + 1000000000L / BATCH_BENCH_PAUSE_NANOS
+				+ " msg/s, consumer costs " + BATCH_COST_NANOS / 1000 + " us per call + " + MESSAGE_COST_NANOS / 1000
+				+ " us per message");
+		double baseline = 0;
+		for (int size : BATCH_SIZES) {
+			TibrvQueue queue = new TibrvQueue();
+			BatchConsumer consumer = new BatchConsumer();
+			BatchDispatcher batchDispatcher = new BatchDispatcher(queue, consumer, size, 100);
+			TibrvListener listener = new TibrvListener(queue, batchDispatcher, transport, BENCH_SUBJECT, null);
+			Thread thread = new Thread(batchDispatcher, "BatchDispatcher-" + size);
+			thread.start();
+
+			TibrvMsg msg = new TibrvMsg();
+			msg.setSendSubject(BENCH_SUBJECT);
+			long start = System.nanoTime();
+			for (int i = 0; i < BATCH_BENCH_MESSAGES; i++) {
+				long next = System.nanoTime() + BATCH_BENCH_PAUSE_NANOS;
+				msg.update("T", System.nanoTime());
+				transport.send(msg);
+				while (System.nanoTime() < next) {
+					Thread.onSpinWait();
+				}
+			}
+			while (consumer.count < BATCH_BENCH_MESSAGES) {
+				Thread.yield();
+			}
+			double throughput = BATCH_BENCH_MESSAGES * 1e9 / (consumer.last - start);
+
+			batchDispatcher.stop();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+			}
+			listener.destroy();
+			queue.destroy();
+
+			if (size == 1) {
+				baseline = throughput;
+			}
+			System.out.println(String.format("batch %-4d %9.0f msg/s (x%.2f), avg batch %.1f, latency %s", size, throughput,
+					throughput / baseline, batchDispatcher.averageBatch(), consumer.histogram.summary(1000, "us")));
+		}
+
+		Tibrv.close();
+	}
+
+	/** Simulated consumer with a fixed cost per call, for -batchbench. */
+	static class BatchConsumer implements MsgBatchCallback
+	{
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		volatile long count = 0;
+		volatile long last = 0;
+
+		public void onMsgs(List<TibrvMsg> msgs)
+		{
+			long now = System.nanoTime();
+			for (TibrvMsg msg : msgs) {
+				try {
+					histogram.record(now - msg.getAsLong("T", 0));
+				} catch (TibrvException e) {
+					e.printStackTrace();
+				}
+			}
+			spin(BATCH_COST_NANOS + MESSAGE_COST_NANOS * msgs.size());
+			last = System.nanoTime();
+			count += msgs.size();
+		}
+
+		static void spin(long nanos)
+		{
+			long end = System.nanoTime() + nanos;
+			while (System.nanoTime() < end) {
+				Thread.onSpinWait();
+			}
+		}
+
+	}
+
+	/** Records send-to-callback latency of bench messages. */
+	static class LatencyProbe implements TibrvMsgCallback
+	{
+
+		final LatencyHistogram histogram = new LatencyHistogram();
+		volatile long count = 0;
+
+		public void onMsg(TibrvListener listener, TibrvMsg msg)
+		{
+			try {
+				histogram.record(System.nanoTime() - msg.getAsLong("T", 0));
+			} catch (TibrvException e) {
+				e.printStackTrace();
+			}
+			count++;
+		}
+
+		long count()
+		{
+			return count;
+		}
+
+		String summary()
+		{
+			// the receiver thread has been joined, reading is safe
+			return histogram.summary(1000, "us");
+		}
+
+	}
+
+}
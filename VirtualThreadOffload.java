@@ -0,0 +1,124 @@
+
+/*
+ * VirtualThreadOffload - runs blocking callbacks on virtual threads
+ *
+ * Used as the callback of listeners instead of the real callback.  The
+ * dispatcher thread only starts a virtual thread for each message,
+ * which calls the real callback, so callbacks that block on I/O or
+ * sleep overlap by the thousands without a platform thread each.
+ *
+ * At most maxInFlight callbacks run at once.  When that many are
+ * running the dispatcher thread waits for one to finish, so the
+ * backlog stays in the Rendezvous queue, where a limit policy can
+ * deal with it, instead of piling up as threads.
+ *
+ * Messages of one queue no longer complete in order.  Inbound messages
+ * are only valid during the dispatch that delivered them, so each
+ * virtual thread gets a copy, which it disposes after the callback.
+ * Needs Java 21.
+ *
+ * Example:
+ *
+ *  VirtualThreadOffload offload = new VirtualThreadOffload("Offload",10000,callback);
+ *  new TibrvListener(queue,offload,transport,subject,null);
+ *  ...
+ *  offload.shutdown();
+ *  System.err.println(offload.report());
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class VirtualThreadOffload implements TibrvMsgCallback
+{
+    final TibrvMsgCallback callback;
+    final int              maxInFlight;
+    final Semaphore        permits;
+    final ExecutorService  executor;
+
+    final AtomicLong    started   = new AtomicLong();
+    final AtomicLong    completed = new AtomicLong();
+    final AtomicLong    waits     = new AtomicLong();
+    final AtomicInteger inFlight  = new AtomicInteger();
+    final AtomicInteger peak      = new AtomicInteger();
+
+    public VirtualThreadOffload(String name, int maxInFlight, TibrvMsgCallback callback)
+    {
+        this.callback    = callback;
+        this.maxInFlight = Math.max(1,maxInFlight);
+        this.permits     = new Semaphore(this.maxInFlight);
+        this.executor    = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name(name+"-",1).factory());
+    }
+
+    // runs on the dispatcher thread
+    public void onMsg(final TibrvListener listener, TibrvMsg msg)
+    {
+        final TibrvMsg copy;
+        try
+        {
+            copy = new TibrvMsg(msg);
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            return;
+        }
+        try
+        {
+            if (!permits.tryAcquire())
+            {
+                waits.incrementAndGet();
+                permits.acquire();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            copy.dispose();
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int running = inFlight.incrementAndGet();
+        if (running > peak.get())
+            peak.set(running);
+        started.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    callback.onMsg(listener,copy);
+                }
+                finally
+                {
+                    copy.dispose();
+                    inFlight.decrementAndGet();
+                    completed.incrementAndGet();
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    // Waits for the callbacks still running; no more may be started.
+    public void shutdown()
+    {
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(Long.MAX_VALUE,TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+        }
+    }
+
+    public String report()
+    {
+        return "Offload: "+started.get()+" started, "+completed.get()+" completed, "+
+               inFlight.get()+" in flight (peak "+peak.get()+", limit "+maxInFlight+
+               "), dispatcher waited "+waits.get()+" times";
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a polling dispatch loop does when poll() finds the queue empty.
+ *
+ * idle() is called with the number of consecutive empty polls, starting
+ * at 1, and is reset to 0 by the loop whenever an event was dispatched.
+ * Loops stop counting at Integer.MAX_VALUE, so a long idle period stays
+ * in the last phase of a strategy instead of wrapping back to spinning.
+ * A strategy trades CPU for wake-up latency: busy spinning keeps a core
+ * at 100% but reacts within nanoseconds, parking frees the core but
+ * costs tens of microseconds to wake up.
+ */
+public abstract class WaitStrategy
+{
+
+	static final int SPIN_TRIES = 10000;
+	static final int YIELD_TRIES = 100;
+	static final long PARK_NANOS = 50000;
+
+	public abstract void idle(int emptyPolls);
+
+	/** Returns the strategy for "spin", "yield" or "park". */
+	public static WaitStrategy forName(String name)
+	{
+		if (name.equals("spin"))
+			return new BusySpin();
+		if (name.equals("yield"))
+			return new SpinThenYield();
+		if (name.equals("park"))
+			return new SpinThenPark();
+		throw new IllegalArgumentException("Unknown wait strategy: " + name);
+	}
+
+	/** Spins forever, lowest latency, burns a core. */
+	public static class BusySpin extends WaitStrategy
+	{
+		public void idle(int emptyPolls)
+		{
+			Thread.onSpinWait();
+		}
+
+		public String toString()
+		{
+			return "spin";
+		}
+	}
+
+	/** Spins for a while, then yields the core to other threads. */
+	public static class SpinThenYield extends WaitStrategy
+	{
+		public void idle(int emptyPolls)
+		{
+			if (emptyPolls < SPIN_TRIES)
+				Thread.onSpinWait();
+			else
+				Thread.yield();
+		}
+
+		public String toString()
+		{
+			return "yield";
+		}
+	}
+
+	/** Spins, then yields, then parks for a short time. */
+	public static class SpinThenPark extends WaitStrategy
+	{
+		public void idle(int emptyPolls)
+		{
+			if (emptyPolls < SPIN_TRIES)
+				Thread.onSpinWait();
+			else if (emptyPolls < SPIN_TRIES + YIELD_TRIES)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(PARK_NANOS);
+		}
+
+		public String toString()
+		{
+			return "park";
+		}
+	}
+
+}
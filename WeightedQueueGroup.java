@@ -0,0 +1,169 @@
+
+/*
+ * WeightedQueueGroup - queue group sharing dispatch time by weight
+ *
+ * A TibrvQueueGroup always dispatches from the queue with the highest
+ * priority that has events, so under sustained load on a high priority
+ * queue the lower ones get nothing at all.  This group uses deficit
+ * round robin over time instead: the queues take turns, and on its
+ * turn a queue is credited QUANTUM_NANOS times its weight and
+ * dispatches events until the time spent in its callbacks has used up
+ * the credit or it has no more events.  Overspending is carried over
+ * to its next turn.  An empty queue loses its credit, so a queue
+ * cannot save up for later, but keeps its debt, so slow callbacks are
+ * paid for even when the queue empties in between.
+ *
+ * While all queues are busy each one gets its weight's share of the
+ * dispatch time; time a queue does not need goes to the others.
+ *
+ * The group is a TibrvDispatchable, so it can be dispatched by a
+ * TibrvDispatcher like a queue group.  Dispatch calls are serialized,
+ * it is meant for one dispatcher thread.  When every queue is empty
+ * dispatch() and timedDispatch() spin, then park for short periods,
+ * until an event arrives.
+ *
+ * Example:
+ *
+ *  WeightedQueueGroup group = new WeightedQueueGroup();
+ *  group.add(queue1,1);
+ *  group.add(queue2,3);
+ *  new TibrvDispatcher("dispatcher",group);
+ */
+
+import java.util.*;
+import com.tibco.tibrv.*;
+
+public class WeightedQueueGroup implements TibrvDispatchable
+{
+    static final long QUANTUM_NANOS = 100000;   // 100 us per unit of weight
+
+    static class Slot
+    {
+        final TibrvQueue queue;
+        final int        weight;
+        final long       quantum;
+
+        long deficit    = 0;
+        long dispatched = 0;
+        long busyNanos  = 0;
+
+        Slot(TibrvQueue queue, int weight)
+        {
+            this.queue   = queue;
+            this.weight  = weight;
+            this.quantum = weight*QUANTUM_NANOS;
+        }
+    }
+
+    final List<Slot>   slots    = new ArrayList<Slot>();
+    final WaitStrategy strategy = new WaitStrategy.SpinThenPark();
+
+    int     current     = 0;
+    boolean turnStarted = false;
+
+    public synchronized void add(TibrvQueue queue, int weight)
+    {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be at least 1: "+weight);
+        slots.add(new Slot(queue,weight));
+    }
+
+    public void dispatch() throws TibrvException, InterruptedException
+    {
+        timedDispatch(-1);
+    }
+
+    // Waits at most 'timeout' seconds for an event, forever if negative.
+    public boolean timedDispatch(double timeout) throws TibrvException, InterruptedException
+    {
+        long deadline = timeout < 0 ? Long.MAX_VALUE : System.nanoTime()+(long)(timeout*1e9);
+        int emptyPolls = 0;
+        while (!poll())
+        {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (System.nanoTime() >= deadline)
+                return false;
+            if (emptyPolls < Integer.MAX_VALUE)
+                emptyPolls++;
+            strategy.idle(emptyPolls);
+        }
+        return true;
+    }
+
+    // Dispatches one event, if any queue has one, from the queue whose
+    // turn it is.
+    public synchronized boolean poll() throws TibrvException, InterruptedException
+    {
+        int n = slots.size();
+        for (int visits=0; visits < 2*n+1; visits++)
+        {
+            Slot slot = slots.get(current);
+            if (!turnStarted)
+            {
+                slot.deficit += slot.quantum;
+                turnStarted = true;
+            }
+            if (slot.deficit > 0 && slot.queue.getCount() > 0)
+            {
+                long start = System.nanoTime();
+                boolean dispatched = slot.queue.poll();
+                long nanos = System.nanoTime()-start;
+                slot.deficit -= nanos;
+                if (dispatched)
+                {
+                    slot.dispatched++;
+                    slot.busyNanos += nanos;
+                    return true;
+                }
+            }
+            // end of this queue's turn
+            if (slot.queue.getCount() == 0)
+                slot.deficit = Math.min(slot.deficit,0);
+            current = (current+1) % n;
+            turnStarted = false;
+
+            // a full round found events only in queues that are still
+            // paying off long callbacks: skip ahead the rounds it takes
+            // until one of them is in credit again
+            if (current == 0 && visits >= n-1)
+                fastForward();
+        }
+        return false;
+    }
+
+    void fastForward() throws TibrvException
+    {
+        long rounds = Long.MAX_VALUE;
+        for (Slot slot : slots)
+            if (slot.queue.getCount() > 0)
+                rounds = Math.min(rounds,(-slot.deficit)/slot.quantum+1);
+        if (rounds == Long.MAX_VALUE || rounds <= 1)
+            return;
+        for (Slot slot : slots)
+            if (slot.queue.getCount() > 0)
+                slot.deficit += (rounds-1)*slot.quantum;
+    }
+
+    // Events and dispatch time per queue with their shares.
+    public synchronized String report()
+    {
+        long events = 0;
+        long busy = 0;
+        for (Slot slot : slots)
+        {
+            events += slot.dispatched;
+            busy   += slot.busyNanos;
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i=0; i<slots.size(); i++)
+        {
+            Slot slot = slots.get(i);
+            out.append(String.format("  queue %d (weight %d): %d events (%.1f%%), %.3f s (%.1f%%)%n",
+                    i+1,slot.weight,slot.dispatched,
+                    events == 0 ? 0 : 100.0*slot.dispatched/events,slot.busyNanos/1e9,
+                    busy == 0 ? 0 : 100.0*slot.busyNanos/busy));
+        }
+        return out.toString();
+    }
+}
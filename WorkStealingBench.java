@@ -0,0 +1,179 @@
+
+/*
+ * WorkStealingBench - WorkStealingDispatcher against fixed dispatchers
+ *
+ * There are no parameters required to run this program.
+ * It uses the Java implementation and the process transport and does
+ * not need a daemon.
+ *
+ * QUEUES queues are loaded with MESSAGES messages in total, skewed so
+ * that three quarters go to the first four queues, then drained by
+ * THREADS threads, each message costing COST_MICROS of busy work:
+ *
+ *  static groups   THREADS TibrvDispatchers, each on a TibrvQueueGroup
+ *                  of QUEUES/THREADS neighbouring queues, so all hot
+ *                  queues share one thread
+ *  stealing        a WorkStealingDispatcher with THREADS workers
+ *  per queue       one TibrvDispatcher per queue, QUEUES threads, for
+ *                  reference
+ *
+ * For each layout the program prints the drain time and messages per
+ * second, best of ROUNDS.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class WorkStealingBench implements TibrvMsgCallback
+{
+    static final int  QUEUES      = 16;
+    static final int  THREADS     = 4;
+    static final int  MESSAGES    = 200000;
+    static final long COST_MICROS = 2;
+    static final int  ROUNDS      = 3;
+
+    TibrvTransport transport;
+    TibrvQueue[]   queues = new TibrvQueue[QUEUES];
+    AtomicLong     processed = new AtomicLong();
+    CountDownLatch done;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            Tibrv.open(Tibrv.IMPL_JAVA);
+            new WorkStealingBench().execute();
+            Tibrv.close();
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
+    void execute() throws TibrvException
+    {
+        transport = Tibrv.processTransport();
+        for (int i=0; i<QUEUES; i++)
+        {
+            queues[i] = new TibrvQueue();
+            new TibrvListener(queues[i],this,transport,"bench."+i,null);
+        }
+
+        System.out.println(QUEUES+" queues, "+THREADS+" threads, "+MESSAGES+
+                           " messages, "+COST_MICROS+" us per message");
+        System.out.println("layout                 drain ms         msg/s");
+        double a = 0, b = 0, c = 0;
+        for (int round=0; round<ROUNDS; round++)
+        {
+            a = Math.max(a,run("static groups"));
+            b = Math.max(b,run("stealing"));
+            c = Math.max(c,run("per queue"));
+        }
+        System.out.println(String.format("best: static groups %.0f, stealing %.0f, per queue %.0f msg/s",
+                                         a,b,c));
+    }
+
+    double run(String layout) throws TibrvException
+    {
+        load();
+        processed.set(0);
+        done = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        TibrvDispatcher[]      dispatchers = null;
+        TibrvQueueGroup[]      queueGroups = null;
+        WorkStealingDispatcher group       = null;
+        if (layout.equals("stealing"))
+        {
+            group = new WorkStealingDispatcher("Worker",queues,THREADS,
+                                               WaitStrategy.forName("park"));
+            group.start();
+        }
+        else if (layout.equals("static groups"))
+        {
+            dispatchers = new TibrvDispatcher[THREADS];
+            queueGroups = new TibrvQueueGroup[THREADS];
+            int perGroup = QUEUES/THREADS;
+            for (int i=0; i<THREADS; i++)
+            {
+                queueGroups[i] = new TibrvQueueGroup();
+                for (int j=0; j<perGroup; j++)
+                    queueGroups[i].add(queues[i*perGroup+j]);
+                dispatchers[i] = new TibrvDispatcher("Group-"+(i+1),queueGroups[i],0.2);
+            }
+        }
+        else
+        {
+            dispatchers = new TibrvDispatcher[QUEUES];
+            for (int i=0; i<QUEUES; i++)
+                dispatchers[i] = new TibrvDispatcher("Queue-"+(i+1),queues[i],0.2);
+        }
+
+        long nanos;
+        try
+        {
+            try
+            {
+                done.await();
+            }
+            catch (InterruptedException e)
+            {
+            }
+            nanos = System.nanoTime()-start;
+
+            if (group != null)
+                group.stop();
+            else
+            {
+                for (TibrvDispatcher dispatcher : dispatchers)
+                {
+                    try
+                    {
+                        dispatcher.join();
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+            }
+        }
+        finally
+        {
+            // the queues are reused, the groups around them are not
+            if (queueGroups != null)
+                for (TibrvQueueGroup queueGroup : queueGroups)
+                    queueGroup.destroy();
+        }
+
+        double rate = MESSAGES*1e9/nanos;
+        System.out.println(String.format("%-16s %14.1f %13.0f",layout,nanos/1e6,rate));
+        return rate;
+    }
+
+    // three of four messages go to queues 0..3, the rest to the others
+    void load() throws TibrvException
+    {
+        TibrvMsg msg = new TibrvMsg();
+        for (int k=0; k<MESSAGES; k++)
+        {
+            // the hot messages are numbered 3*(k/4)+k%4 and go round
+            // queues 0..3 in turn
+            int queue = k % 4 != 3 ? (3*(k/4)+k % 4) % 4 : 4+(k/4) % (QUEUES-4);
+            msg.setSendSubject("bench."+queue);
+            msg.update("n",k);
+            transport.send(msg);
+        }
+    }
+
+    public void onMsg(TibrvListener listener, TibrvMsg msg)
+    {
+        long end = System.nanoTime()+COST_MICROS*1000;
+        while (System.nanoTime() < end)
+            Thread.onSpinWait();
+        if (processed.incrementAndGet() == MESSAGES)
+            done.countDown();
+    }
+}
@@ -0,0 +1,199 @@
+
+/*
+ * WorkStealingDispatcher - a fixed set of threads dispatching many queues
+ *
+ * With one TibrvDispatcher per queue, or a static split of queues into
+ * queue groups, a hot queue keeps its thread busy while the threads of
+ * quiet queues sleep.  Here every worker thread may dispatch any queue:
+ *
+ *  - a worker first serves its home queue (worker i has queue i, if
+ *    there are that many queues),
+ *  - when its home queue is empty or taken it steals from the deepest
+ *    queue, judged by getCount(), that no other worker holds,
+ *  - it then drains up to BURST events with poll() and lets the queue
+ *    go again.
+ *
+ * Each queue is held by at most one worker at a time, so events of a
+ * queue are still dispatched one after the other, in order, as with a
+ * single TibrvDispatcher.  This also means one queue never gets more
+ * than one thread; stealing helps when there are more queues than
+ * threads and the load moves between them.
+ *
+ * Idle workers wait according to a WaitStrategy, spinning first and
+ * parking for short periods later.
+ *
+ * Example:
+ *
+ *  WorkStealingDispatcher group =
+ *          new WorkStealingDispatcher("Worker",queues,4,WaitStrategy.forName("park"));
+ *  group.start();
+ *  ...
+ *  group.stop();
+ *  System.out.print(group.report());
+ */
+
+import java.util.concurrent.atomic.*;
+import com.tibco.tibrv.*;
+
+public class WorkStealingDispatcher
+{
+    static final int BURST = 64;
+
+    static class Slot
+    {
+        final TibrvQueue    queue;
+        final int           index;
+        final AtomicBoolean held       = new AtomicBoolean();
+        final AtomicLong    dispatched = new AtomicLong();
+        final AtomicLong    stolen     = new AtomicLong();
+
+        Slot(TibrvQueue queue, int index)
+        {
+            this.queue = queue;
+            this.index = index;
+        }
+
+        int count()
+        {
+            try
+            {
+                return queue.getCount();
+            }
+            catch (TibrvException e)
+            {
+                return 0;
+            }
+        }
+    }
+
+    final String       name;
+    final Slot[]       slots;
+    final Thread[]     workers;
+    final WaitStrategy strategy;
+
+    volatile boolean running = true;
+
+    public WorkStealingDispatcher(String name, TibrvQueue[] queues,
+                                  int threads, WaitStrategy strategy)
+    {
+        this.name     = name;
+        this.strategy = strategy;
+        slots = new Slot[queues.length];
+        for (int i=0; i<queues.length; i++)
+            slots[i] = new Slot(queues[i],i);
+        workers = new Thread[Math.max(1,threads)];
+    }
+
+    public void start()
+    {
+        for (int i=0; i<workers.length; i++)
+        {
+            final Slot home = i < slots.length ? slots[i] : null;
+            workers[i] = new Thread(name+"-"+(i+1)) {
+                public void run()
+                {
+                    work(home);
+                }
+            };
+            workers[i].start();
+        }
+    }
+
+    // Stops the workers after their current burst and waits for them.
+    public void stop()
+    {
+        running = false;
+        for (Thread worker : workers)
+        {
+            try
+            {
+                worker.join();
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    void work(Slot home)
+    {
+        int emptyPolls = 0;
+        try
+        {
+            while (running)
+            {
+                Slot slot = acquire(home);
+                if (slot == null)
+                {
+                    if (emptyPolls < Integer.MAX_VALUE)
+                        emptyPolls++;
+                    strategy.idle(emptyPolls);
+                    continue;
+                }
+                emptyPolls = 0;
+                try
+                {
+                    int n = 0;
+                    while (n < BURST && slot.queue.poll())
+                        n++;
+                    slot.dispatched.addAndGet(n);
+                    if (slot != home && n > 0)
+                        slot.stolen.addAndGet(n);
+                }
+                finally
+                {
+                    slot.held.set(false);
+                }
+            }
+        }
+        catch (TibrvException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+        }
+    }
+
+    // Returns a queue with events that this worker now holds, or null.
+    Slot acquire(Slot home)
+    {
+        if (home != null && home.count() > 0 && home.held.compareAndSet(false,true))
+            return home;
+
+        Slot deepest = null;
+        int  depth   = 0;
+        for (Slot slot : slots)
+        {
+            if (slot == home || slot.held.get())
+                continue;
+            int count = slot.count();
+            if (count > depth)
+            {
+                deepest = slot;
+                depth   = count;
+            }
+        }
+        if (deepest != null && deepest.held.compareAndSet(false,true))
+            return deepest;
+        return null;
+    }
+
+    public String report()
+    {
+        StringBuilder out = new StringBuilder();
+        long total = 0;
+        long stolen = 0;
+        for (Slot slot : slots)
+        {
+            long n = slot.dispatched.get();
+            total  += n;
+            stolen += slot.stolen.get();
+            out.append("  queue "+slot.index+": "+n+" events, "+slot.stolen.get()+
+                       " stolen, depth "+slot.count()+"\n");
+        }
+        out.append("  "+name+": "+workers.length+" threads, "+slots.length+" queues, "+
+                   total+" events, "+stolen+" stolen\n");
+        return out.toString();
+    }
+}
@@ -27,8 +27,86 @@
  * Try to change the program such that it only uses one dispatcher
  * and you will see it takes 10 seconds to process all messages.
  *
+ * This sample needs Java 21 to build and run, for the virtual threads
+ * of VirtualThreadOffload.
+ *
+ * Optional parameters:
+ *
+ * -adaptive <max>  - instead of two fixed dispatchers, use a
+ *                    DispatcherPool which starts with one dispatcher
+ *                    thread, adds threads while messages queue up, up
+ *                    to <max>, and retires threads idle for 3 seconds.
+ *                    Scaling events and pool metrics are printed.
+ *                    Not used together with -affinity, -conflate or
+ *                    -virtual, which need a single intake thread.
+ *
+ * -metrics         - print dispatch metrics (messages, busy and idle
+ *                    time, utilization per dispatcher thread and per
+ *                    listener, see DispatchMetrics) every second
+ *                    while publishing and once at the end.
+ *
+ * -affinity <lanes> - one dispatcher thread takes messages off the
+ *                    queue and hands each to one of <lanes> worker
+ *                    threads by hash of its key, see
+ *                    KeyAffinityDispatcher.  Messages with the same key
+ *                    are processed in order.  Lane depth and skew are
+ *                    printed every second and at the end.
+ *
+ * -key <key>       - key for -affinity: token:N, field:NAME or
+ *                    subject.  The default is field:field, the field
+ *                    this sample sets to a different value in each
+ *                    message.
+ *
+ * -virtual <max>   - one dispatcher thread hands each message to a
+ *                    virtual thread which runs the callback, with at
+ *                    most <max> callbacks in flight, see
+ *                    VirtualThreadOffload.
+ *
+ * -messages <n>    - publish <n> messages instead of ten, spread over
+ *                    the same five seconds.  Messages are printed only
+ *                    if there are at most 100.  For example
+ *
+ *                      java dispatcher -virtual 100000 -messages 100000
+ *
+ *                    runs the one second callbacks side by side on
+ *                    virtual threads instead of two at a time.
+ *
+ * -profile <ms>    - time every callback per listener and report
+ *                    callbacks slower than <ms> milliseconds with a
+ *                    stack of the dispatcher thread sampled while it
+ *                    was running, see CallbackProfiler.  Callback
+ *                    times are printed at the end.
+ *
+ * -deadline <spec> - drop messages whose deadline has passed when they
+ *                    are dispatched, instead of processing them, see
+ *                    DeadlineFilter.  Each message carries its publish
+ *                    time in field "time" (epoch milliseconds), so
+ *
+ *                      java dispatcher -deadline ttl:2000:time
+ *
+ *                    drops messages that waited for more than two
+ *                    seconds.  Counts are printed at the end.
+ *
+ * -conflate <workers> - one dispatcher thread keeps only the latest
+ *                    message per subject and <workers> threads process
+ *                    those, see ConflatingDispatcher.  Messages
+ *                    replaced before a worker got to them are dropped.
+ *                    The conflation ratio and backlog drain time are
+ *                    printed every second and at the end.  Not used
+ *                    together with -affinity.
+ *
+ * The callback is wrapped in this order, innermost first: the deadline
+ * filter, the profiler, the virtual thread offload, the metrics, then
+ * the key-affinity lanes or the conflating intake.  So -profile times
+ * only the messages processed, on whatever thread runs the callback,
+ * including virtual threads.  -metrics times the work of the threads
+ * that hand messages on: with -virtual that is the intake thread
+ * starting virtual threads, including waits for a free slot, rather
+ * than an entry per virtual thread.
+ *
  */
 
+import java.util.concurrent.atomic.*;
 import com.tibco.tibrv.*;
 
 public class dispatcher implements TibrvMsgCallback
@@ -37,12 +115,103 @@ public class dispatcher implements TibrvMsgCallback
     String subject   = "dispatchers.test";  // test subject
     long   startTime = 0;                   // the time we start
 
-    int processedMessageCount = 0;          // count of processed messages
+    // count of processed messages, updated by all dispatchers
+    AtomicInteger processedMessageCount = new AtomicInteger();
+
+    static final int TOTAL_MESSAGES = 10;   // default number of messages
+
+    int totalMessages = TOTAL_MESSAGES;     // total number of messages
 
-    static final int TOTAL_MESSAGES = 10;   // total number of messages
+    int adaptiveMax = 0;                    // max threads of adaptive pool
 
-    public dispatcher()
+    DispatchMetrics metrics = null;         // dispatch metrics if requested
+
+    int    affinityLanes = 0;               // lanes of key-affinity dispatch
+    String affinityKey   = "field:field";   // key for key-affinity dispatch
+
+    int virtualMax = 0;                     // max callbacks on virtual threads
+
+    CallbackProfiler profiler = null;       // callback profiler if requested
+
+    DeadlineFilter deadline = null;         // deadline filter if requested
+
+    int conflateWorkers = 0;                // workers of conflating intake
+
+    public dispatcher(String args[])
     {
+        int i=0;
+        while (i < args.length)
+        {
+            if (args[i].equals("-adaptive") && i+1 < args.length)
+            {
+                adaptiveMax = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-metrics"))
+            {
+                metrics = new DispatchMetrics();
+                i++;
+            }
+            else
+            if (args[i].equals("-affinity") && i+1 < args.length)
+            {
+                affinityLanes = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-key") && i+1 < args.length)
+            {
+                affinityKey = args[i+1];
+                i += 2;
+            }
+            else
+            if (args[i].equals("-virtual") && i+1 < args.length)
+            {
+                virtualMax = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-messages") && i+1 < args.length)
+            {
+                totalMessages = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-profile") && i+1 < args.length)
+            {
+                profiler = new CallbackProfiler(Double.parseDouble(args[i+1]),false,1000);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-deadline") && i+1 < args.length)
+            {
+                deadline = new DeadlineFilter(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-conflate") && i+1 < args.length)
+            {
+                conflateWorkers = Integer.parseInt(args[i+1]);
+                i += 2;
+            }
+            else
+                usage();
+        }
+        if (affinityLanes > 0 && conflateWorkers > 0)
+            usage();
+        if (adaptiveMax > 0 && (affinityLanes > 0 || conflateWorkers > 0 || virtualMax > 0))
+            usage();
+    }
+
+    void usage()
+    {
+        System.err.println("Usage: java dispatcher [-adaptive max-threads] [-metrics]");
+        System.err.println("                       [-affinity lanes [-key token:N|field:NAME|subject]]");
+        System.err.println("                       [-virtual max-in-flight] [-messages n]");
+        System.err.println("                       [-profile slow-ms] [-deadline field:NAME|ttl:ms:NAME]");
+        System.err.println("                       [-conflate workers]");
+        System.exit(-1);
     }
 
     public void execute()
@@ -60,8 +229,38 @@ public class dispatcher implements TibrvMsgCallback
             // Create the queue
             TibrvQueue queue = new TibrvQueue();
 
-            // Create listener
-            new TibrvListener(queue,this,transport,subject,null);
+            // Create listener, dropping expired messages,
+            // profiling callbacks, running them on virtual
+            // threads and timing dispatch if requested
+            // and going through key-affinity lanes or
+            // a conflating intake if requested
+            TibrvMsgCallback callback = this;
+            if (deadline != null)
+                callback = deadline.wrap(callback);
+            if (profiler != null)
+                callback = profiler.wrap(callback);
+            VirtualThreadOffload offload = null;
+            if (virtualMax > 0)
+            {
+                offload = new VirtualThreadOffload("Offload",virtualMax,callback);
+                callback = offload;
+            }
+            if (metrics != null)
+                callback = metrics.wrap(callback);
+            KeyAffinityDispatcher affinity = null;
+            if (affinityLanes > 0)
+            {
+                affinity = new KeyAffinityDispatcher("Lane",affinityLanes,1000,
+                                                     affinityKey,callback);
+                callback = affinity;
+            }
+            ConflatingDispatcher conflater = null;
+            if (conflateWorkers > 0)
+            {
+                conflater = new ConflatingDispatcher("Conflate",conflateWorkers,callback);
+                callback = conflater;
+            }
+            new TibrvListener(queue,callback,transport,subject,null);
 
             // Prepare the message
             TibrvMsg msg = new TibrvMsg();
@@ -71,9 +270,28 @@ public class dispatcher implements TibrvMsgCallback
             startTime = System.currentTimeMillis();
 
             // Create two dispatchers with 3 seconds timeout
-            // so they quit when all messages are sent.
-            TibrvDispatcher dispatcher1 = new TibrvDispatcher("Dispatcher-1",queue,3);
-            TibrvDispatcher dispatcher2 = new TibrvDispatcher("Dispatcher-2",queue,3);
+            // so they quit when all messages are sent,
+            // or an adaptive pool of dispatchers,
+            // or a single intake dispatcher feeding the lanes
+            // or starting virtual threads.
+            TibrvDispatcher dispatcher1 = null;
+            TibrvDispatcher dispatcher2 = null;
+            DispatcherPool  pool        = null;
+            if (adaptiveMax > 0)
+            {
+                pool = new DispatcherPool("Dispatcher",queue,1,adaptiveMax,1,3);
+                pool.start();
+            }
+            else
+            if (affinity != null || conflater != null || offload != null)
+            {
+                dispatcher1 = new TibrvDispatcher("Intake",queue,3);
+            }
+            else
+            {
+                dispatcher1 = new TibrvDispatcher("Dispatcher-1",queue,3);
+                dispatcher2 = new TibrvDispatcher("Dispatcher-2",queue,3);
+            }
 
             // We use this to track the message number
             int msgIndex = 0;
@@ -82,14 +300,18 @@ public class dispatcher implements TibrvMsgCallback
                     +(System.currentTimeMillis()-startTime)/1000+" seconds");
 
             // Start publishing two messages at a time
-            // every second, total of TOTAL_MESSAGES messages
-            for (int i=0; i<TOTAL_MESSAGES/2; i++)
+            // every second, total of TOTAL_MESSAGES messages,
+            // or a fifth of totalMessages every second
+            for (int i=0; i<5; i++)
             {
-                // Publish 2 messages
-                for (int j=0; j<2; j++)
+                // Publish 2 messages, or a fifth of totalMessages
+                int count = totalMessages*(i+1)/5-totalMessages*i/5;
+                for (int j=0; j<count; j++)
                 {
                     msgIndex++;
                     msg.update("field","value-"+msgIndex);
+                    if (deadline != null)
+                        msg.update("time",System.currentTimeMillis());
                     transport.send(msg);
                 }
 
@@ -99,6 +321,13 @@ public class dispatcher implements TibrvMsgCallback
                     Thread.sleep(1000);
                 }
                 catch(InterruptedException e){}
+
+                if (metrics != null)
+                    System.err.print(metrics.report());
+                if (affinity != null)
+                    System.err.print(affinity.report());
+                if (conflater != null)
+                    System.err.println(conflater.report());
             }
 
             System.err.println("Stopped publishing messages at "+
@@ -108,13 +337,46 @@ public class dispatcher implements TibrvMsgCallback
             // and exit after the timeout
             try
             {
-                dispatcher1.join();
-                dispatcher2.join();
+                if (pool != null)
+                {
+                    pool.awaitIdle(3);
+                    System.err.println(pool.metrics());
+                    pool.shutdown();
+                }
+                else
+                {
+                    dispatcher1.join();
+                    if (dispatcher2 != null)
+                        dispatcher2.join();
+                }
             }
             catch(InterruptedException e)
             {
             }
 
+            // Stop the worker threads behind the intake,
+            // they would keep the program running
+            if (affinity != null)
+                affinity.shutdown();
+            if (conflater != null)
+                conflater.shutdown();
+            if (offload != null)
+            {
+                offload.shutdown();
+                System.err.println(offload.report());
+            }
+
+            if (metrics != null)
+                System.err.print(metrics.report());
+            if (affinity != null)
+                System.err.print(affinity.report());
+            if (conflater != null)
+                System.err.println(conflater.report());
+            if (profiler != null)
+                System.err.print(profiler.report(10));
+            if (deadline != null)
+                System.err.println(deadline.report());
+
             // Close Tibrv
             Tibrv.close();
         }
@@ -132,7 +394,8 @@ public class dispatcher implements TibrvMsgCallback
     public void onMsg(TibrvListener listener, TibrvMsg msg)
     {
         // print which dispatcher got the message
-        System.err.println(Thread.currentThread().getName()+
+        if (totalMessages <= 100)
+            System.err.println(Thread.currentThread().getName()+
                 " processing message "+msg+
                 " at "+(System.currentTimeMillis()-startTime)/1000+" seconds");
 
@@ -143,17 +406,15 @@ public class dispatcher implements TibrvMsgCallback
         }
         catch(InterruptedException e){}
 
-        processedMessageCount++;
-
-        // report when we done processing all TOTAL_MESSAGES messages
-        if (processedMessageCount == TOTAL_MESSAGES)
+        // report when we done processing all totalMessages messages
+        if (processedMessageCount.incrementAndGet() == totalMessages)
             System.err.println("Processed all messages in "+
                 +(System.currentTimeMillis()-startTime)/1000+" seconds");
     }
 
     public static void main(String args[])
     {
-        new dispatcher().execute();
+        new dispatcher(args).execute();
     }
 
 }
@@ -22,6 +22,25 @@
  * Because queues have different priorities the callback will first
  * receive messages published into the queue with higher priority.
  *
+ * Optional parameters:
+ *
+ * -weights <w1,w2> - dispatch the queues with a WeightedQueueGroup
+ *                    instead, which shares dispatch time between
+ *                    queue1 and queue2 in the ratio w1 to w2, so the
+ *                    callback receives messages of both queues in
+ *                    turn.  Events and time per queue are printed at
+ *                    the end.
+ *
+ * -aging <ms>      - dispatch the queues with an AgingQueueGroup
+ *                    instead, which keeps the priorities but raises a
+ *                    queue's priority by one for every <ms>
+ *                    milliseconds its oldest message has waited.
+ *                    Events per queue are printed at the end.  As all
+ *                    messages are published before dispatching starts,
+ *                    the oldest messages of both queues have waited
+ *                    equally long, so the order is the same as without
+ *                    -aging; PriorityBench shows aging under load.
+ *
  */
 
 import com.tibco.tibrv.*;
@@ -31,8 +50,41 @@ public class priority implements TibrvMsgCallback
     String subject1 = "1";
     String subject2 = "2";
 
-    public priority()
+    int[] weights = null;   // weights of queue1 and queue2 if requested
+    double aging  = -1;     // aging bound in milliseconds if requested
+
+    public priority(String args[])
+    {
+        int i=0;
+        while (i < args.length)
+        {
+            if (args[i].equals("-weights") && i+1 < args.length)
+            {
+                String[] list = args[i+1].split(",");
+                if (list.length != 2)
+                    usage();
+                weights = new int[2];
+                weights[0] = Integer.parseInt(list[0]);
+                weights[1] = Integer.parseInt(list[1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-aging") && i+1 < args.length)
+            {
+                aging = Double.parseDouble(args[i+1]);
+                i += 2;
+            }
+            else
+                usage();
+        }
+        if (weights != null && aging >= 0)
+            usage();
+    }
+
+    void usage()
     {
+        System.err.println("Usage: java priority [-weights w1,w2 | -aging ms]");
+        System.exit(-1);
     }
 
     public void execute()
@@ -53,10 +105,33 @@ public class priority implements TibrvMsgCallback
             queue1.setPriority(1);
             queue2.setPriority(2);
 
-            // Create queue group and add queues
-            TibrvQueueGroup group = new TibrvQueueGroup();
-            group.add(queue1);
-            group.add(queue2);
+            // Create queue group and add queues,
+            // or a weighted or aging group if requested
+            TibrvDispatchable group;
+            WeightedQueueGroup weightedGroup = null;
+            AgingQueueGroup agingGroup = null;
+            if (aging >= 0)
+            {
+                agingGroup = new AgingQueueGroup(aging);
+                agingGroup.add(queue1);
+                agingGroup.add(queue2);
+                group = agingGroup;
+            }
+            else
+            if (weights != null)
+            {
+                weightedGroup = new WeightedQueueGroup();
+                weightedGroup.add(queue1,weights[0]);
+                weightedGroup.add(queue2,weights[1]);
+                group = weightedGroup;
+            }
+            else
+            {
+                TibrvQueueGroup strict = new TibrvQueueGroup();
+                strict.add(queue1);
+                strict.add(queue2);
+                group = strict;
+            }
 
             // Create listeners
             new TibrvListener(queue1,this,transport,subject1,null);
@@ -95,6 +170,11 @@ public class priority implements TibrvMsgCallback
             {
             }
 
+            if (weightedGroup != null)
+                System.out.print(weightedGroup.report());
+            if (agingGroup != null)
+                System.out.print(agingGroup.report());
+
             // Close Tibrv
             Tibrv.close();
         }
@@ -117,7 +197,7 @@ public class priority implements TibrvMsgCallback
 
     public static void main(String args[])
     {
-        new priority().execute();
+        new priority(args).execute();
     }
 
 }
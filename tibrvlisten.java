@@ -41,18 +41,139 @@
  * Listen to messages published on subject a.b.c using port 7566:
  *  java tibrvlisten -service 7566 a.b.c
  *
+ * Listen to every subject listed in file subjects.txt (one per line)
+ * through a handful of broad listeners, routing messages in-process:
+ *  java tibrvlisten -route -subjects subjects.txt
+ *
+ * The -route option is meant for very large subject lists.  Instead
+ * of one TibrvListener per subject, the program registers each subject
+ * in a SubjectTrie, creates one listener per distinct first element
+ * ("a.>" for "a.b.c", or ">" if any subject starts with a wildcard),
+ * and delivers each message to every matching subject in-process.
+ * Output is the same as without -route.
+ *
+ * Print only messages whose PRICE field is above 100 and whose
+ * VENUE field is "X" (see ContentFilter for the expression syntax):
+ *  java tibrvlisten -filter 'PRICE > 100 && VENUE == "X"' "MD.>"
+ *
+ * The filter is compiled once and evaluated on the message fields
+ * before anything is formatted.  Filter statistics (messages
+ * evaluated, match rate and evaluation cost per message) are printed
+ * when the program exits.
+ *
+ * Instead of printing messages, print the 20 hottest subjects with
+ * their message and byte rates, and a histogram of message sizes,
+ * every 10 seconds:
+ *  java tibrvlisten -stats 20 -interval 10 ">"
+ *
+ * Statistics are kept in fixed memory (see SubjectStats), so -stats
+ * can be left running on feeds with millions of distinct subjects.
+ * The default interval is 5 seconds.
+ *
+ * Dispatch messages on 4 threads instead of the main thread:
+ *  java tibrvlisten -threads 4 a.b.c a.b.d "x.*.Z"
+ *
+ * With -threads N each of N queues gets its own TibrvDispatcher, and
+ * each listener is assigned to a queue by the hash of its subject.
+ * All messages of a listener are processed by the same thread, so
+ * per-subject order is kept.  Since the assignment is per listener,
+ * a few wildcard listeners (or -route, which creates few listeners)
+ * cannot be spread over many threads.  Messages processed by each
+ * thread and the skew between threads (busiest thread against the
+ * average) are printed every interval.
+ *
+ * Print messages as JSON lines, one object per message:
+ *  java tibrvlisten -format json a.b.c
+ *
+ * -format json and -format compact use MsgFormatter, which writes the
+ * fields straight into a reused buffer instead of calling toString().
+ *
+ * Count every message published on any subject, but print only
+ * about one in a thousand of them:
+ *  java tibrvlisten -sample 1/1000 ">"
+ *
+ * Count every message, and every interval print 5 messages chosen
+ * uniformly from all messages of that interval:
+ *  java tibrvlisten -reservoir 5 ">"
+ *
+ * In both sampling modes message and byte counts of all messages are
+ * printed every interval.  Messages not sampled are never formatted.
+ *
+ * Bound the backlog to 10000 events, discarding the oldest 100
+ * events whenever the limit is reached:
+ *  java tibrvlisten -limit first:10000:100 ">"
+ *
+ * The policy is one of first (discard the oldest queued events),
+ * last (discard the newest queued events) or new (discard the
+ * arriving event), see TibrvQueue.setLimitPolicy().  The default
+ * queue cannot be limited, so -limit dispatches messages on a queue
+ * of its own, like -threads does.  Whenever messages are dispatched
+ * off the default queue, a QueueWatchdog reports backlog, growth,
+ * drain time and discards every interval.  Discards are counted from
+ * _RV.WARN.SYSTEM.QUEUE.LIMIT_EXCEEDED advisories, daemon side slow
+ * consumer advisories (_RV.*.SYSTEM.CLIENT.SLOWCONSUMER) are counted
+ * and printed as well.
+ *
+ * Check the SEQ field of every message for gaps, duplicates and out
+ * of order arrivals, per subject:
+ *  java tibrvlisten -seq SEQ -sample 1/1000 "MD.>"
+ *
+ * Totals and the subjects with the most missing messages are printed
+ * every interval and when the program exits.  Sequence state is kept
+ * for at most a million subjects (see SequenceTracker).  Sequence
+ * numbers and latency are taken from every message received, before
+ * -filter decides which to print, so a filter does not show up as gaps.
+ *
+ * Measure one-way latency from the SENDTIME field, which the
+ * publisher sets to its clock in epoch microseconds, without
+ * printing any message:
+ *  java tibrvlisten -latency SENDTIME:us -sample 1/1000000 "MD.>"
+ *
+ * The unit of the field may be ns, us (the default) or ms.  Latency
+ * percentiles since start over all subjects and for the busiest
+ * subjects are printed every interval and when the program exits.
+ *
  */
 
+import java.io.*;
 import java.util.*;
 import com.tibco.tibrv.*;
 
-public class tibrvlisten implements TibrvMsgCallback
+public class tibrvlisten implements TibrvMsgCallback, TibrvTimerCallback
 {
 
     String service = null;
     String network = null;
     String daemon  = null;
 
+    boolean route        = false;
+    String  subjectsFile = null;
+
+    ContentFilter filter = null;
+
+    SequenceTracker sequences = null;
+    LatencyRecorder latency   = null;
+
+    SubjectStats stats    = null;
+    double       interval = 5;
+
+    Sampler sampler = null;
+
+    int format = -1;                        // -1 prints msg.toString()
+    ThreadLocal<MsgFormatter> formatters = null;
+    OutputStream out = new FileOutputStream(FileDescriptor.out);
+
+    int limitPolicy   = TibrvQueue.DISCARD_NONE;
+    int maxEvents     = 0;
+    int discardAmount = 0;
+
+    QueueWatchdog watchdog = null;
+    long slowConsumerAdvisories = 0;
+
+    int           threads = 1;
+    ShardCounter[] shards = null;
+    long          lastShardReport = 0;
+
     public tibrvlisten(String args[])
     {
         // parse arguments for possible optional
@@ -60,10 +181,43 @@ public class tibrvlisten implements TibrvMsgCallback
         // and message strings
         int i = get_InitParams(args);
 
+        // collect subjects from the command line and the subjects file
+        List<String> subjects = new ArrayList<String>();
+        while (i < args.length)
+            subjects.add(args[i++]);
+        if (subjectsFile != null)
+            readSubjects(subjectsFile,subjects);
+
         // we must have at least one subject
-        if (i >= args.length)
+        if (subjects.isEmpty())
             usage();
 
+        if (format >= 0)
+        {
+            formatters = new ThreadLocal<MsgFormatter>() {
+                protected MsgFormatter initialValue()
+                {
+                    return new MsgFormatter(format);
+                }
+            };
+        }
+
+        // report filter and sequence statistics when terminated by Control-C
+        if (filter != null || sequences != null || latency != null)
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run()
+                {
+                    if (filter != null)
+                        System.err.println(filter.report());
+                    if (sequences != null)
+                        System.err.print(sequences.report(20));
+                    if (latency != null)
+                        System.err.print(latency.report(20));
+                }
+            });
+        }
+
         // open Tibrv in native implementation
         try
         {
@@ -89,15 +243,86 @@ public class tibrvlisten implements TibrvMsgCallback
             System.exit(0);
         }
 
-        // Create listeners for specified subjects
-        while (i < args.length)
+        // Create listeners for specified subjects, or for the
+        // few broad subjects covering them when routing in-process
+        TibrvMsgCallback callback = this;
+        Collection<String> listenSubjects = subjects;
+        if (route)
+        {
+            SubjectTrie<TibrvMsgCallback> router = new SubjectTrie<TibrvMsgCallback>();
+            try
+            {
+                for (String subject : subjects)
+                    router.add(subject,this);
+            }
+            catch (IllegalArgumentException e)
+            {
+                System.err.println("Invalid subject: "+e.getMessage());
+                System.exit(0);
+            }
+            callback = new RouterCallback(router);
+            listenSubjects = SubjectTrie.coveringSubjects(subjects);
+            System.err.println("Routing "+router.size()+" subjects through "+
+                                listenSubjects.size()+" listeners");
+        }
+
+        // Create one queue and dispatcher thread per shard, the
+        // default queue is still dispatched by the main thread
+        if (threads > 1 || limitPolicy != TibrvQueue.DISCARD_NONE)
+        {
+            shards = new ShardCounter[threads];
+            TibrvQueue[] queues = new TibrvQueue[threads];
+            try
+            {
+                for (int n=0; n<threads; n++)
+                {
+                    TibrvQueue queue = new TibrvQueue();
+                    queue.setName("shard-"+n);
+                    if (limitPolicy != TibrvQueue.DISCARD_NONE)
+                        queue.setLimitPolicy(limitPolicy,maxEvents,discardAmount);
+                    queues[n] = queue;
+                    shards[n] = new ShardCounter(queue,callback);
+                    new TibrvDispatcher("Dispatcher-"+n,queue);
+                }
+
+                // watch the backlog and count discards and slow consumer
+                // advisories; advisories are dispatched on the default queue
+                watchdog = new QueueWatchdog(queues,interval);
+                watchdog.start();
+                TibrvMsgCallback advisories = new AdvisoryCallback();
+                new TibrvListener(Tibrv.defaultQueue(),advisories,Tibrv.processTransport(),
+                                  "_RV.WARN.SYSTEM.QUEUE.LIMIT_EXCEEDED",null);
+                new TibrvListener(Tibrv.defaultQueue(),advisories,transport,
+                                  "_RV.*.SYSTEM.CLIENT.SLOWCONSUMER",null);
+            }
+            catch (TibrvException e)
+            {
+                System.err.println("Failed to create queue:");
+                e.printStackTrace();
+                System.exit(0);
+            }
+            lastShardReport = System.nanoTime();
+        }
+
+        for (String subject : listenSubjects)
         {
-            // create listener using default queue
+            // create listener using default queue, or the
+            // queue of the shard the subject hashes to
             try
             {
-                new TibrvListener(Tibrv.defaultQueue(),
-                            this,transport,args[i],null);
-                System.err.println("Listening on: "+args[i]);
+                if (shards == null)
+                {
+                    new TibrvListener(Tibrv.defaultQueue(),
+                            callback,transport,subject,null);
+                    System.err.println("Listening on: "+subject);
+                }
+                else
+                {
+                    int n = Math.floorMod(subject.hashCode(),threads);
+                    new TibrvListener(shards[n].queue,
+                            shards[n],transport,subject,null);
+                    System.err.println("Listening on: "+subject+" (shard "+n+")");
+                }
             }
             catch (TibrvException e)
             {
@@ -105,7 +330,22 @@ public class tibrvlisten implements TibrvMsgCallback
                 e.printStackTrace();
                 System.exit(0);
             }
-            i++;
+        }
+
+        // print statistics every interval
+        if (stats != null || shards != null || sampler != null ||
+            sequences != null || latency != null)
+        {
+            try
+            {
+                new TibrvTimer(Tibrv.defaultQueue(),this,interval,null);
+            }
+            catch (TibrvException e)
+            {
+                System.err.println("Failed to create timer:");
+                e.printStackTrace();
+                System.exit(0);
+            }
         }
 
         // dispatch Tibrv events
@@ -130,6 +370,62 @@ public class tibrvlisten implements TibrvMsgCallback
 
     public void onMsg(TibrvListener listener, TibrvMsg msg)
     {
+        if (latency != null)
+            latency.record(msg);
+
+        if (sequences != null)
+        {
+            try
+            {
+                sequences.record(msg.getSendSubject(),
+                                 msg.getAsLong(sequences.getField(),0));
+            }
+            catch (TibrvException e)
+            {
+                sequences.recordMissingField();
+            }
+        }
+
+        if (filter != null && !filter.accept(msg))
+            return;
+
+        if (stats != null)
+        {
+            stats.record(msg.getSendSubject(),byteSize(msg));
+            return;
+        }
+
+        if (sampler != null && !sampler.offer(msg,byteSize(msg)))
+            return;
+
+        print(msg);
+    }
+
+    void print(TibrvMsg msg)
+    {
+        if (formatters != null)
+        {
+            MsgFormatter formatter = formatters.get();
+            try
+            {
+                formatter.format(msg,System.currentTimeMillis());
+                synchronized (out)
+                {
+                    formatter.writeTo(out);
+                }
+            }
+            catch (TibrvException e)
+            {
+                System.err.println("Failed to format message:");
+                e.printStackTrace();
+            }
+            catch (IOException e)
+            {
+                System.exit(0);
+            }
+            return;
+        }
+
         System.out.println((new Date()).toString()+
                             ": subject="+msg.getSendSubject()+
                             ", reply="+msg.getReplySubject()+
@@ -138,19 +434,325 @@ public class tibrvlisten implements TibrvMsgCallback
         System.out.flush();
     }
 
+    public void onTimer(TibrvTimer timer)
+    {
+        if (stats != null)
+            System.out.print(stats.report());
+        if (sampler != null)
+        {
+            for (TibrvMsg msg : sampler.drain())
+            {
+                print(msg);
+                msg.dispose();
+            }
+            System.out.print(sampler.report());
+        }
+        if (sequences != null)
+            System.out.print(sequences.report(20));
+        if (latency != null)
+            System.out.print(latency.report(20));
+        if (shards != null)
+            System.out.print(shardReport());
+        if (watchdog != null)
+        {
+            System.out.print(watchdog.report());
+            if (slowConsumerAdvisories > 0)
+                System.out.println("daemon slow consumer advisories: "+slowConsumerAdvisories);
+        }
+        System.out.flush();
+    }
+
+    // Counts queue limit and slow consumer advisories,
+    // dispatched on the default queue like the timer.
+    class AdvisoryCallback implements TibrvMsgCallback
+    {
+        public void onMsg(TibrvListener listener, TibrvMsg msg)
+        {
+            if (msg.getSendSubject().endsWith(".QUEUE.LIMIT_EXCEEDED"))
+            {
+                // each advisory stands for one discard of the policy's amount
+                watchdog.countDiscard(limitPolicy == TibrvQueue.DISCARD_NEW ? 1 : discardAmount);
+            }
+            else
+            {
+                slowConsumerAdvisories++;
+                System.err.println((new Date()).toString()+
+                                   ": advisory="+msg.getSendSubject()+
+                                   ", message="+msg.toString());
+            }
+        }
+    }
+
+    // parses policy:max-events[:discard-amount], for example first:10000:100
+    void parseLimit(String limit)
+    {
+        String[] parts = limit.split(":");
+        if (parts.length < 2 || parts.length > 3)
+            usage();
+        if (parts[0].equals("first"))
+            limitPolicy = TibrvQueue.DISCARD_FIRST;
+        else if (parts[0].equals("last"))
+            limitPolicy = TibrvQueue.DISCARD_LAST;
+        else if (parts[0].equals("new"))
+            limitPolicy = TibrvQueue.DISCARD_NEW;
+        else
+            usage();
+        maxEvents = Integer.parseInt(parts[1]);
+        discardAmount = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+        if (maxEvents < 1 || discardAmount < 1 || discardAmount > maxEvents)
+            usage();
+    }
+
+    // Counts messages of one shard on the way to the real callback.
+    static class ShardCounter implements TibrvMsgCallback
+    {
+        final TibrvQueue       queue;
+        final TibrvMsgCallback callback;
+
+        // only written by the dispatcher thread of the shard
+        volatile long count    = 0;
+        long          reported = 0;
+
+        ShardCounter(TibrvQueue queue, TibrvMsgCallback callback)
+        {
+            this.queue    = queue;
+            this.callback = callback;
+        }
+
+        public void onMsg(TibrvListener listener, TibrvMsg msg)
+        {
+            callback.onMsg(listener,msg);
+            count++;
+        }
+    }
+
+    String shardReport()
+    {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9,(now-lastShardReport)/1e9);
+        lastShardReport = now;
+
+        long[] delta = new long[shards.length];
+        long total = 0, max = 0;
+        for (int n=0; n<shards.length; n++)
+        {
+            long count = shards[n].count;
+            delta[n] = count-shards[n].reported;
+            shards[n].reported = count;
+            total += delta[n];
+            max = Math.max(max,delta[n]);
+        }
+
+        StringBuilder out = new StringBuilder("shards:");
+        for (int n=0; n<shards.length; n++)
+        {
+            int backlog = 0;
+            try
+            {
+                backlog = shards[n].queue.getCount();
+            }
+            catch (TibrvException e)
+            {
+            }
+            out.append(String.format(" [%d] %.1f msg/s (%d queued)",n,delta[n]/seconds,backlog));
+        }
+        double mean = (double)total/shards.length;
+        out.append(String.format("; total %.1f msg/s, skew %.2f%n",
+                total/seconds,mean == 0 ? 0 : max/mean));
+        return out.toString();
+    }
+
+    static int byteSize(TibrvMsg msg)
+    {
+        try
+        {
+            return msg.getByteSize();
+        }
+        catch (TibrvException e)
+        {
+            return 0;
+        }
+    }
+
+    // Delivers messages of the broad listeners to every
+    // handler whose subject matches the message subject.
+    static class RouterCallback implements TibrvMsgCallback
+    {
+        final SubjectTrie<TibrvMsgCallback> router;
+
+        RouterCallback(SubjectTrie<TibrvMsgCallback> router)
+        {
+            this.router = router;
+        }
+
+        public void onMsg(TibrvListener listener, TibrvMsg msg)
+        {
+            List<TibrvMsgCallback> handlers = router.match(msg.getSendSubject());
+            for (int i=0; i<handlers.size(); i++)
+                handlers.get(i).onMsg(listener,msg);
+        }
+    }
+
+    // read subjects from a file, one per line; blank
+    // lines and lines starting with '#' are ignored
+    void readSubjects(String fileName, List<String> subjects)
+    {
+        try
+        {
+            BufferedReader reader = new BufferedReader(new FileReader(fileName));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#"))
+                    subjects.add(line);
+            }
+            reader.close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Failed to read subjects file "+fileName+":");
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
     // print usage information and quit
     void usage()
     {
         System.err.println("Usage: java tibrvlisten [-service service] [-network network]");
-        System.err.println("            [-daemon daemon] <subject-list>");
+        System.err.println("            [-daemon daemon] [-route] [-subjects file]");
+        System.err.println("            [-filter expression] [-stats top-n] [-interval seconds]");
+        System.err.println("            [-threads n] [-format json|compact]");
+        System.err.println("            [-sample 1/n | -reservoir k]");
+        System.err.println("            [-limit first|last|new:max-events[:discard-amount]]");
+        System.err.println("            [-seq field] [-latency field[:ns|us|ms]]");
+        System.err.println("            <subject-list>");
         System.exit(-1);
     }
 
     int get_InitParams(String[] args)
     {
         int i=0;
-        while(i < args.length-1 && args[i].startsWith("-"))
+        while(i < args.length && args[i].startsWith("-"))
         {
+            if (args[i].equals("-route"))
+            {
+                route = true;
+                i++;
+            }
+            else
+            if (i == args.length-1)
+                usage();
+            else
+            if (args[i].equals("-subjects"))
+            {
+                subjectsFile = args[i+1];
+                i += 2;
+            }
+            else
+            if (args[i].equals("-stats"))
+            {
+                stats = new SubjectStats(Integer.parseInt(args[i+1]));
+                i += 2;
+            }
+            else
+            if (args[i].equals("-latency"))
+            {
+                try
+                {
+                    latency = new LatencyRecorder(args[i+1],10000);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(e.getMessage());
+                    usage();
+                }
+                i += 2;
+            }
+            else
+            if (args[i].equals("-seq"))
+            {
+                sequences = new SequenceTracker(args[i+1],1000000);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-limit"))
+            {
+                parseLimit(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-sample"))
+            {
+                try
+                {
+                    sampler = Sampler.oneIn(Sampler.parseRate(args[i+1]));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(e.getMessage());
+                    usage();
+                }
+                i += 2;
+            }
+            else
+            if (args[i].equals("-reservoir"))
+            {
+                try
+                {
+                    sampler = Sampler.reservoir(Integer.parseInt(args[i+1]));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(e.getMessage());
+                    usage();
+                }
+                i += 2;
+            }
+            else
+            if (args[i].equals("-format"))
+            {
+                try
+                {
+                    format = MsgFormatter.parseFormat(args[i+1]);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(e.getMessage());
+                    usage();
+                }
+                i += 2;
+            }
+            else
+            if (args[i].equals("-threads"))
+            {
+                threads = Integer.parseInt(args[i+1]);
+                if (threads < 1)
+                    usage();
+                i += 2;
+            }
+            else
+            if (args[i].equals("-interval"))
+            {
+                interval = Double.parseDouble(args[i+1]);
+                i += 2;
+            }
+            else
+            if (args[i].equals("-filter"))
+            {
+                try
+                {
+                    filter = new ContentFilter(args[i+1]);
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.err.println(e.getMessage());
+                    usage();
+                }
+                i += 2;
+            }
+            else
             if (args[i].equals("-service"))
             {
                 service = args[i+1];